@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.eclipse.jgit.lib.*;
+
+import com.google.common.collect.*;
+
+final class Discovery {
+	private final List<File> roots;
+	private final int depth;
+	private final List<PathMatcher> ignores;
+
+	Discovery(List<File> roots, int depth, List<String> ignores) {
+		this.roots = ImmutableList.copyOf(roots);
+		this.depth = depth;
+		ImmutableList.Builder<PathMatcher> matchers = ImmutableList.builder();
+		for (String ignore : ignores) {
+			matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + ignore));
+		}
+		this.ignores = matchers.build();
+	}
+
+	void checkRoots() throws IOException {
+		for (File root : roots) {
+			if (!root.exists()) {
+				throw new FileNotFoundException(root.toString());
+			}
+			if (!root.isDirectory()) {
+				throw new IOException("Not a directory: " + root);
+			}
+			if (root.list().length == 0) {
+				throw new IOException("No files in " + root);
+			}
+		}
+	}
+
+	// Repositories and directories at the depth limit that are not
+	// repositories are passed on as soon as they are found, from whichever
+	// thread found them.
+	void walk(Consumer<File> repository, Consumer<File> notRepository) {
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (File root : roots) {
+				Path rootPath = root.toPath();
+				if (isRepository(root)) {
+					repository.accept(root);
+				} else {
+					tasks.add(pool.submit(new Walker(rootPath, rootPath, depth, repository, notRepository)));
+				}
+			}
+			for (ForkJoinTask<?> task : tasks) {
+				task.join();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static boolean isRepository(File dir) {
+		return new File(dir, Constants.DOT_GIT).exists();
+	}
+
+	private boolean isIgnored(Path root, Path dir) {
+		for (PathMatcher ignore : ignores) {
+			if (ignore.matches(dir.getFileName()) || ignore.matches(root.relativize(dir))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@SuppressWarnings("serial")
+	private final class Walker extends RecursiveAction {
+		private final Path root;
+		private final Path dir;
+		private final int depth;
+		private final Consumer<File> repository;
+		private final Consumer<File> notRepository;
+
+		private Walker(Path root, Path dir, int depth, Consumer<File> repository, Consumer<File> notRepository) {
+			this.root = root;
+			this.dir = dir;
+			this.depth = depth;
+			this.repository = repository;
+			this.notRepository = notRepository;
+		}
+
+		@Override
+		protected void compute() {
+			File[] files = dir.toFile().listFiles();
+			if (files == null) {
+				return;
+			}
+			List<Walker> subdirectories = new ArrayList<>();
+			for (File file : files) {
+				if (!file.isDirectory() || isIgnored(root, file.toPath())) {
+					continue;
+				}
+				if (isRepository(file)) {
+					repository.accept(file);
+				} else if (depth > 1) {
+					subdirectories.add(new Walker(root, file.toPath(), depth - 1, repository, notRepository));
+				} else {
+					notRepository.accept(file);
+				}
+			}
+			invokeAll(subdirectories);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+import com.google.common.base.*;
+
+import jbyoshi.gitupdate.ui.*;
+
+// Writes every report event as a tab-separated line: time, type, node, and
+// for created nodes the parent and text.
+final class EventLog implements Consumer<List<ReportEvent>>, Closeable {
+	private static final Joiner JOINER = Joiner.on('\t');
+
+	private final Writer out;
+
+	EventLog(File file) throws IOException {
+		out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void accept(List<ReportEvent> events) {
+		try {
+			for (ReportEvent event : events) {
+				if (event.type == ReportEvent.Type.CREATED) {
+					JOINER.appendTo(out, event.time, event.type, event.node, event.parent,
+							event.text.replace('\t', ' ').replace('\n', ' '));
+				} else {
+					JOINER.appendTo(out, event.time, event.type, event.node);
+				}
+				out.write('\n');
+			}
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -16,40 +16,61 @@
 package jbyoshi.gitupdate;
 
 import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.errors.*;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.submodule.*;
+import org.eclipse.jgit.transport.*;
 
 import com.google.common.collect.*;
 
 import jbyoshi.gitupdate.processor.*;
+import jbyoshi.gitupdate.ui.*;
 
 public class GitUpdate {
-	private static final Set<File> updated = new HashSet<>();
+	private static final Set<File> updated = ConcurrentHashMap.newKeySet();
+	private static final Map<File, Task> objectOwners = new ConcurrentHashMap<>();
+	private static RepositoryIndex index;
+	private static RepositoryPool repositories;
+	private static Resources resources;
 	private static final ImmutableList<Processor> processors = ImmutableList.of(new Fetch(), new FastForward(),
 			new Push());
 
 	public static void main(String[] args) {
+		ReportEvents.INSTANCE.subscribe("view", new ViewUpdater(UI.INSTANCE));
 		Report rootReport = null;
+		ExecutorService workers = null;
+		EventLog eventLog = null;
 		try {
-			File gitDir = new File(System.getProperty("user.home"), "git");
-			if (!gitDir.exists()) {
-				throw new FileNotFoundException(gitDir.toString());
+			Options.parse(args);
+			if (Options.get().getEventLog() != null) {
+				eventLog = new EventLog(Options.get().getEventLog());
+				ReportEvents.INSTANCE.subscribe("log", eventLog);
 			}
-			if (!gitDir.isDirectory()) {
-				throw new IOException("Not a directory: " + gitDir);
+			Discovery discovery = new Discovery(Options.get().getRoots(), Options.get().getDepth(),
+					Options.get().getIgnores());
+			discovery.checkRoots();
+			if (Options.get().getSshIdle() > 0) {
+				SshSessionFactory.setInstance(new PooledSessionFactory());
 			}
-			if (gitDir.list().length == 0) {
-				throw new IOException("No files in " + gitDir);
-			}
-			Task root = new Task("GitUpdate");
+			HttpPool.install(Options.get().getPerHostLimit());
+			ThreadFactory workerFactory = Threads.newFactory("GitUpdate worker %d", Options.get().isAsyncNetwork());
+			int jobs = Options.get().getJobs();
+			workers = jobs == Integer.MAX_VALUE ? Executors.newCachedThreadPool(workerFactory)
+					: Executors.newFixedThreadPool(jobs, workerFactory);
+			repositories = new RepositoryPool(Options.get().getOpenRepositories());
+			resources = Resources.load(new File(System.getProperty("user.home"), ".gitupdate/packs"));
+			resources.install(Options.get().getCacheMemory(), Math.min(jobs, Options.get().getOpenRepositories()),
+					Options.get().useMmap());
+			index = RepositoryIndex.load(Options.get().useIndex()
+					? new File(System.getProperty("user.home"), ".gitupdate/repositories.index") : null);
+			Task root = new Task("GitUpdate", workers, task -> discover(discovery, task));
 			rootReport = root.report;
-			for (File repoDir : gitDir.listFiles()) {
-				update(repoDir, root);
-			}
 			root.start();
 		} catch (Throwable t) {
 			t.printStackTrace();
@@ -57,6 +78,55 @@ public static void main(String[] args) {
 				rootReport = new Report(null, "Error");
 			}
 			rootReport.newErrorChild(t);
+		} finally {
+			try {
+				if (workers != null) {
+					workers.shutdown();
+					// Repositories can only be closed once no worker uses them.
+					workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+				}
+				if (repositories != null) {
+					repositories.close();
+				}
+				ReportEvents.INSTANCE.close();
+				if (eventLog != null) {
+					eventLog.close();
+				}
+			} catch (InterruptedException | IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void discover(Discovery discovery, Task root) {
+		root.onFinish(report -> {
+			resources.report(report);
+			try {
+				resources.save();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		if (Options.get().isPreflight()) {
+			// Credentials are gathered for every repository before any of them starts.
+			List<File> repoDirs = Collections.synchronizedList(new ArrayList<>());
+			discovery.walk(repoDirs::add, repoDir -> notRepository(getRealPath(repoDir), root));
+			Report preflightReport = root.report.newChild("Credentials");
+			Preflight preflight = new Preflight();
+			for (File repoDir : repoDirs) {
+				preflight(repoDir, preflight, preflightReport);
+			}
+			preflight.run(preflightReport);
+			for (File repoDir : repoDirs) {
+				update(repoDir, root);
+			}
+		} else {
+			discovery.walk(repoDir -> update(repoDir, root), repoDir -> notRepository(getRealPath(repoDir), root));
+		}
+		try {
+			index.save();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
@@ -65,36 +135,111 @@ private static void update(File repoDir, Task root) {
 			if (!repoDir.isDirectory()) {
 				return;
 			}
-			try (Repository repo = new RepositoryBuilder().setWorkTree(repoDir).setMustExist(true).build()) {
-				update(repo, root);
+			RepositoryIndex.Directory cached = index.getDirectory(repoDir);
+			if (cached != null && cached.gitDir == null) {
+				notRepository(cached.realPath, root);
+				return;
 			}
-		} catch (RepositoryNotFoundException e) {
-			if (repoDir.getName().equals(Constants.DOT_GIT)) {
-				repoDir = repoDir.getParentFile();
+			File repoGitDir = cached != null && cached.gitDir.isDirectory() ? cached.gitDir
+					: new RepositoryBuilder().setWorkTree(repoDir).setup().getGitDir();
+			File gitDir = repoGitDir;
+			File workTree = repoDir;
+			File commonDir = getCommonDir(repoGitDir);
+			if (commonDir != null) {
+				// A linked worktree; its branches are updated through the repository it belongs to.
+				gitDir = commonDir;
+				workTree = commonDir.getName().equals(Constants.DOT_GIT) ? commonDir.getParentFile() : null;
 			}
-			try {
-				repoDir = repoDir.toPath().toRealPath().toFile();
-			} catch (IOException e1) {
-				repoDir = repoDir.toPath().normalize().toFile();
+			if (cached != null && cached.gitDir.isDirectory()) {
+				update(gitDir, workTree, cached.realPath, root);
+				return;
 			}
-			if (updated.add(repoDir)) {
-				root.report.newChild(repoDir.getName() + " - not a Git repository");
+			Repository repo;
+			try {
+				repo = repositories.acquire(gitDir, workTree);
+			} catch (RepositoryNotFoundException e) {
+				File dir = getRealPath(repoDir);
+				index.putDirectory(repoDir, dir, null);
+				notRepository(dir, root);
+				return;
 			}
+			repositories.release(repo);
+			File dir = getRealPath(gitDir);
+			index.putDirectory(repoDir, dir, repoGitDir);
+			update(gitDir, workTree, dir, root);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	private static void update(Repository repo, Task root) {
-		File dir = repo.getDirectory();
+	private static void preflight(File repoDir, Preflight preflight, Report report) {
+		Repository repo;
+		try {
+			File gitDir = new RepositoryBuilder().setWorkTree(repoDir).setup().getGitDir();
+			File workTree = repoDir;
+			File commonDir = getCommonDir(gitDir);
+			if (commonDir != null) {
+				gitDir = commonDir;
+				workTree = commonDir.getName().equals(Constants.DOT_GIT) ? commonDir.getParentFile() : null;
+			}
+			repo = repositories.acquire(gitDir, workTree);
+		} catch (IOException e) {
+			// Reported when the repository itself is processed.
+			return;
+		}
+		try {
+			preflight.add(repo, report);
+		} finally {
+			repositories.release(repo);
+		}
+	}
+
+	private static void notRepository(File dir, Task root) {
+		if (updated.add(dir)) {
+			root.report.newChild(dir.getName() + " - not a Git repository");
+		}
+	}
+
+	private static File getCommonDir(File gitDir) throws IOException {
+		File file = new File(gitDir, "commondir");
+		if (!file.isFile()) {
+			return null;
+		}
+		String path = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+		File commonDir = new File(path);
+		if (!commonDir.isAbsolute()) {
+			commonDir = new File(gitDir, path);
+		}
+		return commonDir.toPath().normalize().toFile();
+	}
+
+	private static List<File> getAlternates(File objects) throws IOException {
+		File file = new File(objects, "info/alternates");
+		List<File> alternates = new ArrayList<>();
+		if (file.isFile()) {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					File alternate = new File(line);
+					alternates.add(getRealPath(alternate.isAbsolute() ? alternate : new File(objects, line)));
+				}
+			}
+		}
+		return alternates;
+	}
+
+	private static File getRealPath(File dir) {
 		if (dir.getName().equals(Constants.DOT_GIT)) {
 			dir = dir.getParentFile();
 		}
 		try {
-			dir = dir.toPath().toRealPath().toFile();
+			return dir.toPath().toRealPath().toFile();
 		} catch (IOException e) {
-			dir = dir.toPath().normalize().toFile();
+			return dir.toPath().normalize().toFile();
 		}
+	}
+
+	// The repository itself is only opened once its task starts.
+	private static void update(File gitDir, File workTree, File dir, Task root) {
 		if (!updated.add(dir)) {
 			return;
 		}
@@ -102,34 +247,84 @@ private static void update(Repository repo, Task root) {
 		List<String> failures = new ArrayList<>();
 
 		try {
-			if (SubmoduleWalk.containsGitModulesFile(repo)) {
-				try (SubmoduleWalk submodules = SubmoduleWalk.forIndex(repo)) {
-					while (submodules.next()) {
-						if (submodules.getRepository() == null) {
-							failures.add("Submodule " + submodules.getDirectory().getName() + " - does not exist");
-						} else {
-							update(submodules.getRepository(), root);
+			List<String> submodulePaths = index.getSubmodules(dir, gitDir);
+			if (submodulePaths == null) {
+				submodulePaths = new ArrayList<>();
+				Repository repo = repositories.acquire(gitDir, workTree);
+				try {
+					if (SubmoduleWalk.containsGitModulesFile(repo)) {
+						try (SubmoduleWalk submodules = SubmoduleWalk.forIndex(repo)) {
+							while (submodules.next()) {
+								submodulePaths.add(submodules.getPath());
+							}
 						}
 					}
+				} finally {
+					repositories.release(repo);
+				}
+				index.putSubmodules(dir, gitDir, submodulePaths);
+			}
+			for (String path : submodulePaths) {
+				File submoduleTree = new File(workTree, path);
+				File submoduleDir = new RepositoryBuilder().setWorkTree(submoduleTree).setup().getGitDir();
+				if (!submoduleDir.isDirectory()) {
+					failures.add("Submodule " + new File(path).getName() + " - does not exist");
+				} else {
+					update(submoduleDir, submoduleTree, getRealPath(submoduleDir), root);
 				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
-		Task repoTask = root.newChild(dir.getName());
-		for (String error : failures) {
-			repoTask.report.newChild(error).error();
+		// Repositories borrowing objects from one that is already queued wait for
+		// it, so that most of what they would fetch is already there.
+		File objects = getRealPath(new File(gitDir, "objects"));
+		Task owner = null;
+		try {
+			for (File alternate : getAlternates(objects)) {
+				owner = objectOwners.get(alternate);
+				if (owner != null) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 
-		try (Git git = Git.wrap(repo)) {
-			for (Processor processor : processors) {
+		Task task = root.newDynamicChild(dir.getName(), owner, repoTask -> {
+			for (String error : failures) {
+				repoTask.report.newChild(error).error();
+			}
+
+			Repository repo;
+			try {
+				repo = repositories.acquire(gitDir, workTree);
+			} catch (IOException e) {
+				repoTask.report.newErrorChild(e);
+				return;
+			}
+			resources.observe(gitDir);
+			RepositorySnapshot snapshot = new RepositorySnapshot(repo);
+			repoTask.onFinish(report -> {
 				try {
-					processor.registerTasks(repo, git, repoTask);
-				} catch (Exception e) {
-					e.printStackTrace();
+					snapshot.flushConfig();
+				} catch (IOException e) {
+					report.newErrorChild(e);
+				}
+			});
+			repoTask.onFinish(report -> snapshot.clearShared());
+			repoTask.onFinish(report -> repositories.release(repo));
+			try (Git git = Git.wrap(repo)) {
+				for (Processor processor : processors) {
+					try {
+						processor.registerTasks(repo, git, snapshot, repoTask);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
 			}
-		}
+		});
+		objectOwners.putIfAbsent(objects, task);
 	}
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate;
+
+import java.io.*;
+import java.util.*;
+
+import com.google.common.collect.*;
+
+public final class Options {
+	private static final Set<String> FLAGS = ImmutableSet.of("no-index", "atomic-push", "full-fetch",
+			"preflight", "mmap", "shared-cache", "compact");
+	private static final Set<String> VALUES = ImmutableSet.of("jobs", "network", "per-host", "root", "depth", "ignore",
+			"advertisement-ttl", "fetch", "tags-every", "timeout",
+			"host-failures", "retries", "host-rate", "ssh-idle", "open-repos",
+			"cache-memory", "event-log");
+
+	private static Options instance = new Options(ImmutableListMultimap.of());
+
+	private final ListMultimap<String, String> values;
+
+	private Options(ListMultimap<String, String> values) {
+		this.values = values;
+	}
+
+	public static Options get() {
+		return instance;
+	}
+
+	static void parse(String[] args) {
+		ImmutableListMultimap.Builder<String, String> values = ImmutableListMultimap.builder();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			}
+			String name = args[i].substring(2);
+			String value = null;
+			int split = name.indexOf('=');
+			if (split >= 0) {
+				value = name.substring(split + 1);
+				name = name.substring(0, split);
+			}
+			if (FLAGS.contains(name)) {
+				if (value != null) {
+					throw new IllegalArgumentException("Option --" + name + " does not take a value");
+				}
+				value = "true";
+			} else if (VALUES.contains(name)) {
+				if (value == null) {
+					if (i == args.length - 1) {
+						throw new IllegalArgumentException("Missing value for --" + name);
+					}
+					value = args[++i];
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown option: --" + name);
+			}
+			values.put(name, value);
+		}
+		instance = new Options(values.build());
+	}
+
+	private String getString(String name) {
+		List<String> list = values.get(name);
+		return list.isEmpty() ? null : list.get(list.size() - 1);
+	}
+
+	private int getInt(String name, int def, int min) {
+		String value = getString(name);
+		if (value == null) {
+			return def;
+		}
+		int result;
+		try {
+			result = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for --" + name + ": " + value, e);
+		}
+		if (result < min) {
+			throw new IllegalArgumentException("Value for --" + name + " must be at least " + min + ": " + value);
+		}
+		return result;
+	}
+
+	private boolean getFlag(String name) {
+		return values.containsKey(name);
+	}
+
+	private double getDouble(String name, double def, double min) {
+		String value = getString(name);
+		if (value == null) {
+			return def;
+		}
+		double result;
+		try {
+			result = Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for --" + name + ": " + value, e);
+		}
+		if (!(result >= min)) {
+			throw new IllegalArgumentException("Value for --" + name + " must be at least " + min + ": " + value);
+		}
+		return result;
+	}
+
+	// Only virtual threads are cheap enough to give every repository its own.
+	public int getJobs() {
+		return getInt("jobs", isAsyncNetwork() && Threads.hasVirtualThreads() ? Integer.MAX_VALUE
+				: Runtime.getRuntime().availableProcessors(), 1);
+	}
+
+	public boolean isAsyncNetwork() {
+		String mode = getString("network");
+		if (mode == null || mode.equals("worker")) {
+			return false;
+		}
+		if (mode.equals("async")) {
+			return true;
+		}
+		throw new IllegalArgumentException("Invalid value for --network: " + mode);
+	}
+
+	public int getPerHostLimit() {
+		return getInt("per-host", 8, 1);
+	}
+
+	public boolean useIndex() {
+		return !getFlag("no-index");
+	}
+
+	public boolean isAtomicPush() {
+		return getFlag("atomic-push");
+	}
+
+	public boolean isFullFetch() {
+		return getFlag("full-fetch");
+	}
+
+	public int getAdvertisementTtl() {
+		return getInt("advertisement-ttl", 0, 0);
+	}
+
+	public boolean isTrackedFetch() {
+		String mode = getString("fetch");
+		if (mode == null || mode.equals("all")) {
+			return false;
+		}
+		if (mode.equals("tracked")) {
+			return true;
+		}
+		throw new IllegalArgumentException("Invalid value for --fetch: " + mode);
+	}
+
+	public int getTagsEvery() {
+		return getInt("tags-every", 0, 0);
+	}
+
+	public boolean isPreflight() {
+		return getFlag("preflight");
+	}
+
+	public int getTimeout() {
+		return getInt("timeout", 60, 1);
+	}
+
+	public int getHostFailures() {
+		return getInt("host-failures", 3, 1);
+	}
+
+	public int getRetries() {
+		return getInt("retries", 2, 0);
+	}
+
+	public double getHostRate() {
+		return getDouble("host-rate", 0, 0);
+	}
+
+	public int getSshIdle() {
+		return getInt("ssh-idle", 30, 0);
+	}
+
+	public int getOpenRepositories() {
+		return getInt("open-repos", 64, 1);
+	}
+
+	public long getCacheMemory() {
+		int defaultSize = (int) (Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024));
+		return getInt("cache-memory", Math.max(defaultSize, 16), 16) * 1024L * 1024L;
+	}
+
+	public boolean useMmap() {
+		return getFlag("mmap");
+	}
+
+	public boolean useSharedCache() {
+		return getFlag("shared-cache");
+	}
+
+	public boolean isCompact() {
+		return getFlag("compact");
+	}
+
+	public File getEventLog() {
+		String path = getString("event-log");
+		return path == null ? null : new File(path);
+	}
+
+	public List<File> getRoots() {
+		List<String> roots = values.get("root");
+		if (roots.isEmpty()) {
+			return ImmutableList.of(new File(System.getProperty("user.home"), "git"));
+		}
+		ImmutableList.Builder<File> files = ImmutableList.builder();
+		for (String root : roots) {
+			files.add(new File(root));
+		}
+		return files.build();
+	}
+
+	public int getDepth() {
+		return getInt("depth", 1, 1);
+	}
+
+	public List<String> getIgnores() {
+		return values.get("ignore");
+	}
+}
@@ -15,21 +15,64 @@
  */
 package jbyoshi.gitupdate;
 
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
 import com.google.common.collect.*;
 
 import jbyoshi.gitupdate.ui.*;
 
 public final class Report {
-	boolean error, modified, future, working, done;
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private final int id = ids.getAndIncrement();
 	private final Report parent;
-	final ReportView view;
+	private final String text;
+	private final boolean task;
+	private boolean started;
+	private boolean finished;
+	// With --compact, a report is only announced once something happens to a
+	// task or below it. Until then its messages wait here, and a task that
+	// finishes cleanly only counts towards an "unchanged" line under its parent,
+	// until something is reported on it after all.
+	private volatile boolean shown;
+	private List<Report> hiddenMessages;
+	private int unchanged;
+	private volatile boolean errored;
 
 	Report(Report parent, String text) {
+		this(parent, text, false);
+	}
+
+	Report(Report parent, String text, boolean task) {
 		this.parent = parent;
-		this.view = parent == null ? UI.INSTANCE.getRoot() : parent.view.newChild(text);
+		this.text = text;
+		this.task = task;
+		if (parent == null || !Options.get().isCompact()) {
+			announce();
+		} else if (!task) {
+			synchronized (parent) {
+				if (parent.shown) {
+					announce();
+				} else {
+					if (parent.hiddenMessages == null) {
+						parent.hiddenMessages = new ArrayList<>();
+					}
+					parent.hiddenMessages.add(this);
+				}
+			}
+		}
+	}
+
+	// Children check shown to decide whether they can announce themselves, so
+	// it is only set once this report's own event is out.
+	private void announce() {
+		ReportEvents.INSTANCE.publish(ReportEvent.created(id, parent == null ? ReportEvent.ROOT : parent.id, text,
+				task));
+		shown = true;
 	}
 
-	public Report newChild(String text) {
+	public synchronized Report newChild(String text) {
 		return new Report(this, text);
 	}
 
@@ -51,25 +94,93 @@ public void newErrorChild(Throwable e) {
 	}
 
 	public Report error() {
-		if (parent != null) {
-			parent.error();
+		for (Report report = this; report != null && !report.errored; report = report.parent) {
+			report.errored = true;
 		}
-		error = true;
-		stateChanged();
+		show();
+		ReportEvents.INSTANCE.publish(ReportEvent.of(ReportEvent.Type.ERRORED, id));
 		return this;
 	}
 
 	public Report modified() {
-		if (parent != null) {
-			parent.modified();
-		}
-		modified = true;
-		stateChanged();
+		show();
+		ReportEvents.INSTANCE.publish(ReportEvent.of(ReportEvent.Type.MODIFIED, id));
 		return this;
 	}
 
-	void stateChanged() {
-		view.stateChanged(error, working, future, modified, done);
+	private void show() {
+		if (shown) {
+			return;
+		}
+		parent.show();
+		List<Report> messages;
+		boolean finished;
+		synchronized (this) {
+			if (shown) {
+				return;
+			}
+			announce();
+			if (started) {
+				ReportEvents.INSTANCE.publish(ReportEvent.of(ReportEvent.Type.STARTED, id));
+			}
+			finished = this.finished;
+			if (finished) {
+				ReportEvents.INSTANCE.publish(ReportEvent.of(ReportEvent.Type.FINISHED, id));
+			}
+			messages = hiddenMessages;
+			hiddenMessages = null;
+		}
+		if (finished) {
+			synchronized (parent) {
+				parent.unchanged--;
+			}
+		}
+		if (messages != null) {
+			for (Report message : messages) {
+				message.show();
+			}
+		}
+	}
+
+	// Tasks directly under the root are the repositories.
+	private boolean isRepository() {
+		return task && parent != null && parent.parent == null;
+	}
+
+	synchronized void start() {
+		started = true;
+		if (isRepository()) {
+			Progress.started();
+		}
+		if (shown) {
+			ReportEvents.INSTANCE.publish(ReportEvent.of(ReportEvent.Type.STARTED, id));
+		}
+	}
+
+	void finish() {
+		if (isRepository()) {
+			Progress.finished(errored);
+		}
+		boolean hidden;
+		int unchanged;
+		synchronized (this) {
+			finished = true;
+			hidden = !shown;
+			unchanged = this.unchanged;
+			if (!hidden) {
+				ReportEvents.INSTANCE.publish(ReportEvent.of(ReportEvent.Type.FINISHED, id));
+			}
+		}
+		if (hidden) {
+			synchronized (parent) {
+				parent.unchanged++;
+			}
+		} else if (unchanged > 0) {
+			// Marked done so that views which only draw nodes once their state
+			// changes, like the console, show it too.
+			Report summary = newChild(unchanged + " unchanged");
+			ReportEvents.INSTANCE.publish(ReportEvent.of(ReportEvent.Type.FINISHED, summary.id));
+		}
 	}
 
 	private static final class ErrorPrint {
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.jgit.lib.*;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+final class RepositoryIndex {
+	private static final String HEADER = "GitUpdate repository index 1";
+	private static final Splitter SPLITTER = Splitter.on('\t');
+	private static final Joiner JOINER = Joiner.on('\t');
+
+	private final File file;
+	private final Map<File, Directory> oldDirectories = new HashMap<>();
+	private final Map<File, Submodules> oldSubmodules = new HashMap<>();
+	private final Map<File, Directory> directories = new ConcurrentHashMap<>();
+	private final Map<File, Submodules> submodules = new ConcurrentHashMap<>();
+
+	private RepositoryIndex(File file) {
+		this.file = file;
+	}
+
+	static RepositoryIndex load(File file) {
+		RepositoryIndex index = new RepositoryIndex(file);
+		if (file == null || !file.isFile()) {
+			return index;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine())) {
+				return index;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				List<String> parts = SPLITTER.splitToList(line);
+				if (parts.get(0).equals("D") && parts.size() == 5) {
+					File dir = new File(parts.get(1));
+					index.oldDirectories.put(dir, new Directory(Long.parseLong(parts.get(2)), toFile(parts.get(3)),
+							toFile(parts.get(4))));
+				} else if (parts.get(0).equals("S") && parts.size() >= 4) {
+					File workTree = new File(parts.get(1));
+					index.oldSubmodules.put(workTree, new Submodules(Long.parseLong(parts.get(2)),
+							Long.parseLong(parts.get(3)), ImmutableList.copyOf(parts.subList(4, parts.size()))));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			index.oldDirectories.clear();
+			index.oldSubmodules.clear();
+		}
+		return index;
+	}
+
+	private static File toFile(String path) {
+		return path.isEmpty() ? null : new File(path);
+	}
+
+	Directory getDirectory(File dir) {
+		Directory entry = oldDirectories.get(dir);
+		if (entry == null || entry.modified != dir.lastModified()) {
+			return null;
+		}
+		directories.put(dir, entry);
+		return entry;
+	}
+
+	void putDirectory(File dir, File realPath, File gitDir) {
+		directories.put(dir, new Directory(dir.lastModified(), realPath, gitDir));
+	}
+
+	List<String> getSubmodules(File workTree, File gitDir) {
+		Submodules entry = oldSubmodules.get(workTree);
+		if (entry == null || entry.gitModulesModified != getGitModulesModified(workTree)
+				|| entry.indexModified != getIndexModified(gitDir)) {
+			return null;
+		}
+		submodules.put(workTree, entry);
+		return entry.paths;
+	}
+
+	void putSubmodules(File workTree, File gitDir, List<String> paths) {
+		submodules.put(workTree, new Submodules(getGitModulesModified(workTree), getIndexModified(gitDir),
+				ImmutableList.copyOf(paths)));
+	}
+
+	private static long getGitModulesModified(File workTree) {
+		return new File(workTree, Constants.DOT_GIT_MODULES).lastModified();
+	}
+
+	private static long getIndexModified(File gitDir) {
+		return new File(gitDir, "index").lastModified();
+	}
+
+	void save() throws IOException {
+		if (file == null) {
+			return;
+		}
+		Files.createDirectories(file.toPath().getParent());
+		File temp = new File(file.getPath() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(HEADER);
+			writer.newLine();
+			for (Map.Entry<File, Directory> entry : directories.entrySet()) {
+				Directory dir = entry.getValue();
+				writer.write(JOINER.join("D", entry.getKey(), dir.modified, toString(dir.realPath),
+						toString(dir.gitDir)));
+				writer.newLine();
+			}
+			for (Map.Entry<File, Submodules> entry : submodules.entrySet()) {
+				Submodules modules = entry.getValue();
+				writer.write(JOINER.join(
+						Iterables.concat(ImmutableList.of("S", entry.getKey(), modules.gitModulesModified,
+								modules.indexModified), modules.paths)));
+				writer.newLine();
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String toString(File file) {
+		return file == null ? "" : file.getPath();
+	}
+
+	static final class Directory {
+		private final long modified;
+		final File realPath;
+		final File gitDir;
+
+		private Directory(long modified, File realPath, File gitDir) {
+			this.modified = modified;
+			this.realPath = realPath;
+			this.gitDir = gitDir;
+		}
+	}
+
+	private static final class Submodules {
+		private final long gitModulesModified;
+		private final long indexModified;
+		private final List<String> paths;
+
+		private Submodules(long gitModulesModified, long indexModified, List<String> paths) {
+			this.gitModulesModified = gitModulesModified;
+			this.indexModified = indexModified;
+			this.paths = paths;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.jgit.lib.*;
+
+// Open repositories, most recently used last. At most the limit are open at
+// once: to open another, the least recently used idle one is closed, and if
+// every one is in use, acquire waits until one is released. Repositories are
+// opened outside the lock, so that a slow open only holds up its own users.
+final class RepositoryPool {
+	private final int limit;
+	private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	RepositoryPool(int limit) {
+		this.limit = limit;
+	}
+
+	Repository acquire(File gitDir, File workTree) throws IOException {
+		Entry entry;
+		boolean open = false;
+		synchronized (this) {
+			while ((entry = entries.get(gitDir)) == null) {
+				makeRoom();
+				if (entries.size() < limit) {
+					entry = new Entry();
+					entries.put(gitDir, entry);
+					open = true;
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for an open repository");
+				}
+			}
+			entry.users++;
+		}
+		if (open) {
+			try {
+				entry.repo.complete(new RepositoryBuilder().setGitDir(gitDir).setWorkTree(workTree)
+						.setMustExist(true).build());
+			} catch (IOException | RuntimeException e) {
+				entry.repo.completeExceptionally(e);
+				synchronized (this) {
+					entries.remove(gitDir, entry);
+					notifyAll();
+				}
+				throw e;
+			}
+		}
+		try {
+			return entry.repo.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	synchronized void release(Repository repo) {
+		Entry entry = entries.get(repo.getDirectory());
+		if (entry == null || entry.repo.getNow(null) != repo) {
+			throw new IllegalArgumentException("Repository is not in the pool: " + repo.getDirectory());
+		}
+		entry.users--;
+		if (entry.users == 0) {
+			notifyAll();
+		}
+	}
+
+	// Idle entries have all been opened, since opening ones have a user.
+	private void makeRoom() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (entries.size() >= limit && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.users == 0) {
+				it.remove();
+				entry.repo.join().close();
+			}
+		}
+	}
+
+	synchronized void close() {
+		for (Entry entry : entries.values()) {
+			Repository repo = entry.repo.getNow(null);
+			if (repo != null) {
+				repo.close();
+			}
+		}
+		entries.clear();
+	}
+
+	private static final class Entry {
+		private final CompletableFuture<Repository> repo = new CompletableFuture<>();
+		private int users;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+import org.eclipse.jgit.lib.*;
+
+import com.google.common.collect.*;
+
+public final class RepositorySnapshot {
+	private final Repository repo;
+	private Data data;
+	private boolean configChanged;
+	private final Map<Class<?>, Object> shared = new HashMap<>();
+
+	public RepositorySnapshot(Repository repo) {
+		this.repo = repo;
+	}
+
+	public Repository getRepository() {
+		return repo;
+	}
+
+	// Call this after changing any ref or config value.
+	public synchronized void invalidate() {
+		data = null;
+	}
+
+	// Config changes are made in memory right away, but only written to disk
+	// by flushConfig, so that a repository's config is saved at most once.
+	public synchronized void unsetConfig(String section, String subsection, String name) {
+		repo.getConfig().unset(section, subsection, name);
+		configChanged = true;
+		data = null;
+	}
+
+	public synchronized void flushConfig() throws IOException {
+		if (configChanged) {
+			repo.getConfig().save();
+			configChanged = false;
+		}
+	}
+
+	// State loaded once and shared by all of this repository's tasks, such as
+	// its commit graph. It is dropped by clearShared when they are done.
+	public synchronized <T> T getShared(Class<T> type, Function<Repository, T> loader) {
+		return type.cast(shared.computeIfAbsent(type, key -> loader.apply(repo)));
+	}
+
+	public synchronized void clearShared() {
+		shared.clear();
+	}
+
+	private synchronized Data get() throws IOException {
+		if (data == null) {
+			data = new Data(repo);
+		}
+		return data;
+	}
+
+	public Ref getHead() throws IOException {
+		return get().head;
+	}
+
+	public Map<String, Ref> getLocalBranches() throws IOException {
+		return get().localBranches;
+	}
+
+	public Map<String, Ref> getAllRefs() throws IOException {
+		return get().refs;
+	}
+
+	public Ref getRef(String name) throws IOException {
+		return name == null ? null : get().refs.get(name);
+	}
+
+	public Set<String> getRemoteNames() throws IOException {
+		return get().remotes;
+	}
+
+	// Branches checked out in linked worktrees, by full ref name, with the
+	// directory of the worktree.
+	public Map<String, File> getWorktreeBranches() throws IOException {
+		return get().worktreeBranches;
+	}
+
+	private BranchData getBranch(String branch) throws IOException {
+		BranchData data = get().branches.get(branch);
+		return data == null ? new BranchData(repo.getConfig(), branch) : data;
+	}
+
+	public Collection<String> getBranchesTracking(String remoteTrackingBranch) throws IOException {
+		return get().trackingBranches.get(remoteTrackingBranch);
+	}
+
+	public String getRemote(String branch) throws IOException {
+		return getBranch(branch).remote;
+	}
+
+	public String getMerge(String branch) throws IOException {
+		return getBranch(branch).merge;
+	}
+
+	public String getPushRemote(String branch) throws IOException {
+		return getBranch(branch).pushRemote;
+	}
+
+	public String getTrackingBranch(String branch) throws IOException {
+		return getBranch(branch).trackingBranch;
+	}
+
+	public String getRemoteTrackingBranch(String branch) throws IOException {
+		return getBranch(branch).remoteTrackingBranch;
+	}
+
+	private static final class Data {
+		private final Map<String, Ref> refs;
+		private final Ref head;
+		private final Map<String, Ref> localBranches;
+		private final Map<String, BranchData> branches;
+		private final Multimap<String, String> trackingBranches;
+		private final Set<String> remotes;
+		private final Map<String, File> worktreeBranches;
+
+		private Data(Repository repo) throws IOException {
+			refs = ImmutableMap.copyOf(repo.getRefDatabase().getRefs(RefDatabase.ALL));
+			Ref head = refs.get(Constants.HEAD);
+			this.head = head == null ? repo.exactRef(Constants.HEAD) : head;
+
+			ImmutableSortedMap.Builder<String, Ref> localBranches = ImmutableSortedMap.naturalOrder();
+			for (Ref ref : refs.values()) {
+				if (ref.getName().startsWith(Constants.R_HEADS)) {
+					localBranches.put(ref.getName().substring(Constants.R_HEADS.length()), ref);
+				}
+			}
+			this.localBranches = localBranches.build();
+
+			Config config = repo.getConfig();
+			ImmutableMap.Builder<String, BranchData> branches = ImmutableMap.builder();
+			ImmutableListMultimap.Builder<String, String> trackingBranches = ImmutableListMultimap.builder();
+			for (String branch : this.localBranches.keySet()) {
+				BranchData data = new BranchData(config, branch);
+				branches.put(branch, data);
+				if (data.remoteTrackingBranch != null) {
+					trackingBranches.put(data.remoteTrackingBranch, branch);
+				}
+			}
+			this.branches = branches.build();
+			this.trackingBranches = trackingBranches.build();
+			remotes = ImmutableSet.copyOf(config.getSubsections(ConfigConstants.CONFIG_REMOTE_SECTION));
+
+			Map<String, File> worktreeBranches = new HashMap<>();
+			File[] worktrees = new File(repo.getDirectory(), "worktrees").listFiles(File::isDirectory);
+			if (worktrees != null) {
+				for (File worktree : worktrees) {
+					File headFile = new File(worktree, Constants.HEAD);
+					File gitDirFile = new File(worktree, "gitdir");
+					if (!headFile.isFile() || !gitDirFile.isFile()) {
+						continue;
+					}
+					String worktreeHead = read(headFile);
+					if (worktreeHead.startsWith("ref: ")) {
+						worktreeBranches.put(worktreeHead.substring("ref: ".length()),
+								new File(read(gitDirFile)).getParentFile());
+					}
+				}
+			}
+			this.worktreeBranches = ImmutableMap.copyOf(worktreeBranches);
+		}
+
+		private static String read(File file) throws IOException {
+			return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+		}
+	}
+
+	private static final class BranchData {
+		private final String remote;
+		private final String merge;
+		private final String pushRemote;
+		private final String trackingBranch;
+		private final String remoteTrackingBranch;
+
+		private BranchData(Config config, String branch) {
+			BranchConfig branchConfig = new BranchConfig(config, branch);
+			remote = branchConfig.getRemote();
+			merge = branchConfig.getMerge();
+			pushRemote = Utils.getPushRemote(config, branch);
+			trackingBranch = branchConfig.getTrackingBranch();
+			remoteTrackingBranch = branchConfig.getRemoteTrackingBranch();
+		}
+	}
+}
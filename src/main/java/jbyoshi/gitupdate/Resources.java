@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.eclipse.jgit.storage.file.*;
+
+// Sizes JGit's pack caches from one memory budget. Three quarters go to the
+// shared window cache and the rest is split between the delta base caches of
+// the readers that can be open at once. The window size follows the largest
+// pack seen on the previous run.
+final class Resources {
+	private static final int MB = 1024 * 1024;
+
+	private final File file;
+	private final long previousLargestPack;
+	private final AtomicLong largestPack = new AtomicLong();
+	private final AtomicLong totalPacks = new AtomicLong();
+	private final AtomicInteger repositories = new AtomicInteger();
+	private WindowCacheConfig config;
+
+	private Resources(File file, long previousLargestPack) {
+		this.file = file;
+		this.previousLargestPack = previousLargestPack;
+	}
+
+	static Resources load(File file) {
+		Properties properties = new Properties();
+		if (file.isFile()) {
+			try (InputStream in = Files.newInputStream(file.toPath())) {
+				properties.load(in);
+			} catch (IOException | IllegalArgumentException e) {
+				e.printStackTrace();
+			}
+		}
+		long largest = 0;
+		try {
+			largest = Long.parseLong(properties.getProperty("largest-pack", "0"));
+		} catch (NumberFormatException e) {
+			// Sized from the defaults below.
+		}
+		return new Resources(file, largest);
+	}
+
+	void install(long budget, int readers, boolean mmap) {
+		config = new WindowCacheConfig();
+		long packedGitLimit = Math.max(budget / 4 * 3, 8 * MB);
+		int windowSize = (int) Math.max(8 * 1024, Math.min(MB, previousLargestPack / 4096));
+		if (mmap) {
+			windowSize = Math.max(windowSize, 64 * 1024);
+		}
+		config.setPackedGitWindowSize(Integer.highestOneBit(windowSize));
+		config.setPackedGitLimit(packedGitLimit);
+		config.setPackedGitOpenFiles(Math.max(128, readers * 4));
+		config.setPackedGitMMAP(mmap);
+		config.setDeltaBaseCacheLimit((int) Math.min(Integer.MAX_VALUE, Math.max(MB, budget / 4 / readers)));
+		config.install();
+	}
+
+	void observe(File gitDir) {
+		File[] packs = new File(gitDir, "objects/pack").listFiles((dir, name) -> name.endsWith(".pack"));
+		repositories.incrementAndGet();
+		if (packs == null) {
+			return;
+		}
+		for (File pack : packs) {
+			long size = pack.length();
+			totalPacks.addAndGet(size);
+			largestPack.accumulateAndGet(size, Math::max);
+		}
+	}
+
+	void report(Report root) {
+		if (config == null) {
+			return;
+		}
+		Report report = root.newChild("Pack cache: " + config.getPackedGitLimit() / MB + " MiB in "
+				+ config.getPackedGitWindowSize() / 1024 + " KiB windows"
+				+ (config.isPackedGitMMAP() ? " (memory mapped)" : "") + ", "
+				+ config.getDeltaBaseCacheLimit() / MB + " MiB delta bases per reader");
+		report.newChild(totalPacks.get() / MB + " MiB of packs in " + repositories.get()
+				+ " repositories, largest " + largestPack.get() / MB + " MiB");
+	}
+
+	void save() throws IOException {
+		if (repositories.get() == 0) {
+			return;
+		}
+		Properties properties = new Properties();
+		properties.setProperty("largest-pack", Long.toString(largestPack.get()));
+		Files.createDirectories(file.toPath().getParent());
+		try (OutputStream out = Files.newOutputStream(file.toPath())) {
+			properties.store(out, null);
+		}
+	}
+}
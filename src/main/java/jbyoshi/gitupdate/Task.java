@@ -16,23 +16,33 @@
 package jbyoshi.gitupdate;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 
 public final class Task {
-	private final Consumer<Report> code;
+	private final Consumer<Task> code;
 	private final Set<Task> children = new LinkedHashSet<>();
+	private final List<Consumer<Report>> finishers = new ArrayList<>();
+	// If set, direct children run concurrently on this executor; everything
+	// below them still runs in order on the thread that picked up the child.
+	// Children added while this task is running are scheduled right away.
+	private final Executor executor;
+	// Another task that has to finish before this one starts.
+	private final Task after;
+	private final CompletableFuture<Void> finished = new CompletableFuture<>();
+	private List<CompletableFuture<Void>> scheduled;
+	private boolean closed;
 	final Report report;
 
-	Task(String text) {
-		this(null, text, report -> {
-		});
+	Task(String text, Executor executor, Consumer<Task> code) {
+		this(null, text, code, executor, null);
 	}
 
-	private Task(Report parentReport, String text, Consumer<Report> code) {
-		this.report = new Report(parentReport, text);
-		this.report.future = true;
-		this.report.stateChanged();
+	private Task(Report parentReport, String text, Consumer<Task> code, Executor executor, Task after) {
+		this.report = new Report(parentReport, text, true);
 		this.code = code;
+		this.executor = executor;
+		this.after = after;
 	}
 
 	public Task newChild(String text) {
@@ -41,21 +51,104 @@ public Task newChild(String text) {
 	}
 
 	public Task newChild(String text, Consumer<Report> code) {
-		Task child = new Task(report, text, code);
+		return addChild(new Task(report, text, task -> code.accept(task.report), null, null));
+	}
+
+	public Task newConcurrentChild(String text, Executor executor) {
+		return addChild(new Task(report, text, task -> {
+		}, executor, null));
+	}
+
+	// Runs after all children have finished.
+	public synchronized void onFinish(Consumer<Report> code) {
+		finishers.add(code);
+	}
+
+	// The code may register children of its own; they run once it returns.
+	Task newDynamicChild(String text, Consumer<Task> code) {
+		return newDynamicChild(text, null, code);
+	}
+
+	Task newDynamicChild(String text, Task after, Consumer<Task> code) {
+		return addChild(new Task(report, text, code, null, after));
+	}
+
+	private synchronized Task addChild(Task child) {
+		if (closed) {
+			throw new IllegalStateException("Task has already finished");
+		}
 		children.add(child);
+		if (scheduled != null) {
+			scheduled.add(schedule(child));
+		}
 		return child;
 	}
 
+	private CompletableFuture<Void> schedule(Task child) {
+		if (child.after == null) {
+			return CompletableFuture.runAsync(child::start, executor);
+		}
+		return child.after.finished.thenRunAsync(child::start, executor);
+	}
+
 	void start() {
-		report.future = false;
-		report.working = true;
-		report.stateChanged();
-		code.accept(report);
-		for (Task child : children) {
-			child.start();
+		try {
+			report.start();
+			if (executor == null) {
+				run();
+				for (Task child : children) {
+					if (child.after != null) {
+						child.after.finished.join();
+					}
+					child.start();
+				}
+			} else {
+				synchronized (this) {
+					scheduled = new ArrayList<>();
+					for (Task child : children) {
+						scheduled.add(schedule(child));
+					}
+				}
+				run();
+				int joined = 0;
+				while (true) {
+					CompletableFuture<?>[] pending;
+					synchronized (this) {
+						if (joined == scheduled.size()) {
+							closed = true;
+							break;
+						}
+						pending = scheduled.subList(joined, scheduled.size()).toArray(new CompletableFuture<?>[0]);
+						joined = scheduled.size();
+					}
+					try {
+						// Only fails once every one of them is done.
+						CompletableFuture.allOf(pending).join();
+					} catch (CompletionException e) {
+						report.newErrorChild(e.getCause());
+					}
+				}
+			}
+			for (Consumer<Report> finisher : finishers) {
+				try {
+					finisher.accept(report);
+				} catch (Throwable t) {
+					report.newErrorChild(t);
+				}
+			}
+			report.finish();
+		} finally {
+			finished.complete(null);
+		}
+	}
+
+	// A failure stays on this task's report. Its children still run and are
+	// waited for, and it does not take down its siblings or the whole run.
+	private void run() {
+		try {
+			code.accept(this);
+		} catch (Throwable t) {
+			report.newErrorChild(t);
 		}
-		report.working = false;
-		report.done = true;
-		report.stateChanged();
 	}
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate;
+
+import java.util.concurrent.*;
+
+import com.google.common.util.concurrent.*;
+
+public final class Threads {
+	private Threads() {
+	}
+
+	public static ThreadFactory newFactory(String nameFormat, boolean lightweight) {
+		if (lightweight) {
+			ThreadFactory virtual = newVirtualFactory(nameFormat);
+			if (virtual != null) {
+				return virtual;
+			}
+		}
+		return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+	}
+
+	public static boolean hasVirtualThreads() {
+		return newVirtualFactory("") != null;
+	}
+
+	// Virtual threads only exist on Java 21+, and this project still targets Java 8.
+	private static ThreadFactory newVirtualFactory(String nameFormat) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			return new ThreadFactoryBuilder().setNameFormat(nameFormat).setThreadFactory(factory).build();
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -15,19 +15,12 @@
  */
 package jbyoshi.gitupdate;
 
-import java.io.*;
-import java.util.*;
-
 import org.eclipse.jgit.lib.*;
 
 public final class Utils {
 	private Utils() {
 	}
 
-	public static Map<String, Ref> getLocalBranches(Repository repo) throws IOException {
-		return repo.getRefDatabase().getRefs(Constants.R_HEADS);
-	}
-
 	public static String getShortBranch(String fullBranch) {
 		if (fullBranch.startsWith(Constants.R_HEADS)) {
 			return fullBranch.substring(Constants.R_HEADS.length());
@@ -38,10 +31,10 @@ public static String getShortBranch(String fullBranch) {
 		return fullBranch;
 	}
 
-	public static String getPushRemote(Repository repo, String branch) throws IOException {
-		String pushDefault = repo.getConfig().getString("branch", branch, "pushremote");
+	public static String getPushRemote(Config config, String branch) {
+		String pushDefault = config.getString("branch", branch, "pushremote");
 		if (pushDefault == null) {
-			pushDefault = repo.getConfig().getString("remote", branch, "pushdefault");
+			pushDefault = config.getString("remote", branch, "pushdefault");
 		}
 		return pushDefault;
 	}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.processor;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.jgit.api.*;
+import org.eclipse.jgit.api.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.transport.*;
+
+import com.google.common.collect.*;
+import com.google.common.hash.*;
+
+import jbyoshi.gitupdate.*;
+
+// The refs a remote advertises, used to skip fetches that would not change
+// anything. Advertisements are only worth checking when they are already
+// known: they may be reused for --advertisement-ttl seconds, both within a run
+// and across runs. Otherwise the fetch itself finds out.
+final class Advertisements {
+	private static final Map<String, Advertisement> cache = new ConcurrentHashMap<>();
+	private static final File CACHE_DIR = new File(System.getProperty("user.home"), ".gitupdate/advertisements");
+
+	private Advertisements() {
+	}
+
+	// Returns a stored advertisement that is still within --advertisement-ttl,
+	// or null if the remote has to be asked.
+	static Map<String, ObjectId> getCached(Repository repo, String remote) {
+		long ttl = Options.get().getAdvertisementTtl() * 1000L;
+		String url = getUrl(repo, remote);
+		if (ttl == 0 || url == null) {
+			return null;
+		}
+		Advertisement cached = cache.get(url);
+		if (cached == null) {
+			cached = load(url);
+		}
+		return cached != null && System.currentTimeMillis() - cached.time < ttl ? cached.refs : null;
+	}
+
+	static void put(Repository repo, String remote, Map<String, ObjectId> refs) {
+		String url = getUrl(repo, remote);
+		if (Options.get().getAdvertisementTtl() == 0 || url == null) {
+			return;
+		}
+		Advertisement advertisement = new Advertisement(System.currentTimeMillis(), refs);
+		cache.put(url, advertisement);
+		save(url, advertisement);
+	}
+
+	private static String getUrl(Repository repo, String remote) {
+		try {
+			List<URIish> uris = new RemoteConfig(repo.getConfig(), remote).getURIs();
+			return uris.isEmpty() ? null : uris.get(0).toString();
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	// Peeled tags are kept under their name followed by ^{}, as on the wire.
+	static Map<String, ObjectId> fromRefs(Collection<Ref> advertised) {
+		Map<String, ObjectId> refs = new LinkedHashMap<>();
+		for (Ref ref : advertised) {
+			if (ref.getObjectId() == null) {
+				continue;
+			}
+			refs.put(ref.getName(), ref.getObjectId());
+			if (ref.getPeeledObjectId() != null) {
+				refs.put(ref.getName() + "^{}", ref.getPeeledObjectId());
+			}
+		}
+		return ImmutableMap.copyOf(refs);
+	}
+
+	// Checks whether fetching with these specs would leave every local ref as
+	// it is: nothing new, nothing moved, and nothing to prune.
+	// Tags are only checked for being present, since local tags are never pruned.
+	// Automatically followed tags count only once they point at an object this
+	// repository already has.
+	static boolean isUpToDate(RepositorySnapshot snapshot, Map<String, ObjectId> advertised,
+			Collection<RefSpec> specs, TagOpt tags) throws IOException {
+		for (Map.Entry<String, ObjectId> ref : advertised.entrySet()) {
+			if (ref.getKey().endsWith("^{}")) {
+				continue;
+			}
+			if (tags != TagOpt.NO_TAGS && ref.getKey().startsWith(Constants.R_TAGS)) {
+				Ref local = snapshot.getRef(ref.getKey());
+				if (local == null || !ref.getValue().equals(local.getObjectId())) {
+					if (tags == TagOpt.FETCH_TAGS) {
+						return false;
+					}
+					ObjectId target = advertised.get(ref.getKey() + "^{}");
+					if (snapshot.getRepository().hasObject(target == null ? ref.getValue() : target)) {
+						return false;
+					}
+				}
+			}
+			for (RefSpec spec : specs) {
+				if (spec.getDestination() == null || !spec.matchSource(ref.getKey())) {
+					continue;
+				}
+				Ref local = snapshot.getRef(spec.expandFromSource(ref.getKey()).getDestination());
+				if (local == null || !ref.getValue().equals(local.getObjectId())) {
+					return false;
+				}
+			}
+		}
+		for (Ref local : snapshot.getAllRefs().values()) {
+			if (local.isSymbolic()) {
+				continue;
+			}
+			for (RefSpec spec : specs) {
+				if (spec.getDestination() != null && spec.matchDestination(local.getName())
+						&& !advertised.containsKey(spec.expandFromDestination(local.getName()).getSource())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static File getCacheFile(String url) {
+		return new File(CACHE_DIR, Hashing.sha1().hashString(url, StandardCharsets.UTF_8).toString());
+	}
+
+	private static Advertisement load(String url) {
+		File file = getCacheFile(url);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			if (!url.equals(reader.readLine())) {
+				return null;
+			}
+			long time = Long.parseLong(reader.readLine());
+			ImmutableMap.Builder<String, ObjectId> refs = ImmutableMap.builder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int split = line.indexOf(' ');
+				refs.put(line.substring(split + 1), ObjectId.fromString(line.substring(0, split)));
+			}
+			Advertisement advertisement = new Advertisement(time, refs.build());
+			cache.put(url, advertisement);
+			return advertisement;
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static void save(String url, Advertisement advertisement) {
+		try {
+			Files.createDirectories(CACHE_DIR.toPath());
+			Path temp = Files.createTempFile(CACHE_DIR.toPath(), null, ".tmp");
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(url);
+				writer.newLine();
+				writer.write(Long.toString(advertisement.time));
+				writer.newLine();
+				for (Map.Entry<String, ObjectId> ref : advertisement.refs.entrySet()) {
+					writer.write(ref.getValue().name() + " " + ref.getKey());
+					writer.newLine();
+				}
+			}
+			Files.move(temp, getCacheFile(url).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static final class Advertisement {
+		private final long time;
+		private final Map<String, ObjectId> refs;
+
+		private Advertisement(long time, Map<String, ObjectId> refs) {
+			this.time = time;
+			this.refs = refs;
+		}
+	}
+}
@@ -24,22 +24,36 @@
 
 import jbyoshi.gitupdate.*;
 
-abstract class BranchProcessor extends Processor {
+// S is state shared by all branches of one repository.
+abstract class BranchProcessor<S> extends Processor {
 
 	@Override
-	public void registerTasks(Repository repo, Git git, Task root) throws Exception {
+	public void registerTasks(Repository repo, Git git, RepositorySnapshot snapshot, Task root) throws Exception {
 		Task me = root.newChild(getClass().getSimpleName());
-		for (Map.Entry<String, Ref> branch : Utils.getLocalBranches(repo).entrySet()) {
+		S state = open(repo, snapshot);
+		for (Map.Entry<String, Ref> branch : snapshot.getLocalBranches().entrySet()) {
 			me.newChild(branch.getKey(), report -> {
 				try {
-					process(repo, git, branch.getKey(), branch.getValue(), report);
+					process(repo, git, snapshot, state, branch.getKey(), branch.getValue(), report);
 				} catch (Exception e) {
 					report.newErrorChild(e);
 				}
 			});
 		}
+		me.onFinish(report -> {
+			try {
+				close(repo, snapshot, state, report);
+			} catch (Exception e) {
+				report.newErrorChild(e);
+			}
+		});
 	}
 
-	public abstract void process(Repository repo, Git git, String branch, Ref ref, Report report)
+	protected abstract S open(Repository repo, RepositorySnapshot snapshot) throws IOException;
+
+	public abstract void process(Repository repo, Git git, RepositorySnapshot snapshot, S state, String branch,
+			Ref ref, Report report) throws GitAPIException, IOException;
+
+	protected abstract void close(Repository repo, RepositorySnapshot snapshot, S state, Report report)
 			throws GitAPIException, IOException;
 }
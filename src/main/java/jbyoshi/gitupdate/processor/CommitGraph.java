@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.processor;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.eclipse.jgit.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.*;
+
+import jbyoshi.gitupdate.*;
+
+// Parent links and generation numbers for every commit reachable from the
+// repository's refs, kept in .git/gitupdate/commit-graph. A commit's
+// generation is one more than the highest generation of its parents, so
+// ancestry checks can stop at any commit whose generation is too low. Each
+// repository's graph is loaded once and shared through its snapshot.
+final class CommitGraph {
+	private static final int MAGIC = 0x47554347; // "GUCG"
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final ObjectIdOwnerMap<Node> nodes = new ObjectIdOwnerMap<>();
+	private final List<Node> order = new ArrayList<>();
+
+	private CommitGraph(Repository repo) {
+		this.file = new File(repo.getDirectory(), "gitupdate/commit-graph");
+	}
+
+	static CommitGraph get(RepositorySnapshot snapshot) {
+		return snapshot.getShared(CommitGraph.class, CommitGraph::load);
+	}
+
+	private static CommitGraph load(Repository repo) {
+		CommitGraph graph = new CommitGraph(repo);
+		if (!graph.file.isFile()) {
+			return graph;
+		}
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(graph.file.toPath())))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return graph;
+			}
+			int count = in.readInt();
+			byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			for (int i = 0; i < count; i++) {
+				in.readFully(raw);
+				int generation = in.readInt();
+				Node[] parents = new Node[in.readInt()];
+				for (int j = 0; j < parents.length; j++) {
+					parents[j] = graph.order.get(in.readInt());
+				}
+				graph.add(new Node(ObjectId.fromRaw(raw), generation, parents));
+			}
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			graph.nodes.clear();
+			graph.order.clear();
+		}
+		return graph;
+	}
+
+	// Saved only if any commit was added.
+	synchronized void update(RepositorySnapshot snapshot) throws IOException {
+		if (addAll(snapshot.getRepository(), snapshot.getAllRefs().values())) {
+			save();
+		}
+	}
+
+	private void add(Node node) {
+		node.index = order.size();
+		nodes.add(node);
+		order.add(node);
+	}
+
+	private boolean addAll(Repository repo, Collection<Ref> refs) throws IOException {
+		int oldSize = order.size();
+		try (RevWalk walk = new RevWalk(repo)) {
+			for (Ref ref : refs) {
+				ObjectId id = ref.getObjectId();
+				if (id == null || nodes.contains(id)) {
+					continue;
+				}
+				try {
+					RevObject object = walk.peel(walk.parseAny(id));
+					if (object instanceof RevCommit) {
+						addCommit(walk, (RevCommit) object);
+					}
+				} catch (MissingObjectException e) {
+					// Shallow history or a broken ref; leave this tip out.
+				}
+			}
+		}
+		return order.size() != oldSize;
+	}
+
+	// Parents are added before their children without recursing, since
+	// histories can be far deeper than the stack.
+	private void addCommit(RevWalk walk, RevCommit tip) throws IOException {
+		Deque<RevCommit> stack = new ArrayDeque<>();
+		stack.push(tip);
+		while (!stack.isEmpty()) {
+			RevCommit commit = stack.peek();
+			if (nodes.contains(commit)) {
+				stack.pop();
+				continue;
+			}
+			walk.parseHeaders(commit);
+			boolean ready = true;
+			for (RevCommit parent : commit.getParents()) {
+				if (!nodes.contains(parent)) {
+					stack.push(parent);
+					ready = false;
+				}
+			}
+			if (!ready) {
+				continue;
+			}
+			stack.pop();
+			Node[] parents = new Node[commit.getParentCount()];
+			int generation = 1;
+			for (int i = 0; i < parents.length; i++) {
+				parents[i] = nodes.get(commit.getParent(i));
+				generation = Math.max(generation, parents[i].generation + 1);
+			}
+			add(new Node(commit.copy(), generation, parents));
+		}
+	}
+
+	private void save() throws IOException {
+		Files.createDirectories(file.toPath().getParent());
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(order.size());
+			byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			for (Node node : order) {
+				node.copyRawTo(raw, 0);
+				out.write(raw);
+				out.writeInt(node.generation);
+				out.writeInt(node.parents.length);
+				for (Node parent : node.parents) {
+					out.writeInt(parent.index);
+				}
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Returns null if either commit is not in the graph.
+	synchronized Boolean isAncestor(AnyObjectId ancestor, AnyObjectId descendant) {
+		Node base = nodes.get(ancestor);
+		Node tip = nodes.get(descendant);
+		if (base == null || tip == null) {
+			return null;
+		}
+		Set<Node> seen = new HashSet<>();
+		Deque<Node> queue = new ArrayDeque<>();
+		queue.add(tip);
+		while (!queue.isEmpty()) {
+			Node node = queue.poll();
+			if (node == base) {
+				return true;
+			}
+			if (node.generation <= base.generation || !seen.add(node)) {
+				continue;
+			}
+			Collections.addAll(queue, node.parents);
+		}
+		return false;
+	}
+
+	@SuppressWarnings("serial")
+	private static final class Node extends ObjectIdOwnerMap.Entry {
+		private final int generation;
+		private final Node[] parents;
+		private int index;
+
+		private Node(AnyObjectId id, int generation, Node[] parents) {
+			super(id);
+			this.generation = generation;
+			this.parents = parents;
+		}
+	}
+}
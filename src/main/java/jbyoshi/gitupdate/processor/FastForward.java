@@ -16,78 +16,116 @@
 package jbyoshi.gitupdate.processor;
 
 import java.io.*;
-import java.text.*;
+import java.util.*;
 
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.errors.*;
-import org.eclipse.jgit.internal.*;
 import org.eclipse.jgit.lib.*;
-import org.eclipse.jgit.lib.RefUpdate.*;
 import org.eclipse.jgit.revwalk.*;
+import org.eclipse.jgit.transport.*;
 
 import jbyoshi.gitupdate.*;
 
-public final class FastForward extends BranchProcessor {
+public final class FastForward extends BranchProcessor<FastForward.State> {
 
 	@Override
-	public void process(Repository repo, Git git, String branch, Ref ref, Report report)
-			throws GitAPIException, IOException {
-		String pushDefault = Utils.getPushRemote(repo, branch);
+	protected State open(Repository repo, RepositorySnapshot snapshot) {
+		return new State(snapshot);
+	}
+
+	@Override
+	public void process(Repository repo, Git git, RepositorySnapshot snapshot, State state, String branch, Ref ref,
+			Report report) throws GitAPIException, IOException {
+		String pushDefault = snapshot.getPushRemote(branch);
 		if (pushDefault != null) {
-			tryFastForward(repo, ref, repo.getRef(Constants.R_REMOTES + pushDefault + "/" + branch), report);
+			tryFastForward(repo, snapshot, state, ref,
+					snapshot.getRef(Constants.R_REMOTES + pushDefault + "/" + branch), report);
 		}
-		tryFastForward(repo, ref, repo.getRef(new BranchConfig(repo.getConfig(), branch).getTrackingBranch()), report);
+		tryFastForward(repo, snapshot, state, ref, snapshot.getRef(snapshot.getTrackingBranch(branch)), report);
 		if (pushDefault == null) {
-			tryFastForward(repo, ref, repo.getRef(Constants.R_REMOTES + "upstream/" + branch), report);
+			tryFastForward(repo, snapshot, state, ref, snapshot.getRef(Constants.R_REMOTES + "upstream/" + branch),
+					report);
+		}
+	}
+
+	// All fast-forwards of branches that are not checked out are applied here,
+	// in one batch per repository.
+	@Override
+	protected void close(Repository repo, RepositorySnapshot snapshot, State state, Report report)
+			throws IOException {
+		try {
+			if (state.pending.isEmpty()) {
+				return;
+			}
+			BatchRefUpdate batch = repo.getRefDatabase().newBatchUpdate();
+			batch.setRefLogMessage("Fast forward", false);
+			Map<ReceiveCommand, Pending> commands = new LinkedHashMap<>();
+			for (Map.Entry<String, Pending> entry : state.pending.entrySet()) {
+				Pending pending = entry.getValue();
+				ReceiveCommand command = new ReceiveCommand(pending.oldId, pending.newId, entry.getKey(),
+						ReceiveCommand.Type.UPDATE);
+				commands.put(command, pending);
+				batch.addCommand(command);
+			}
+			try (RevWalk walk = new RevWalk(repo)) {
+				batch.execute(walk, NullProgressMonitor.INSTANCE);
+			} finally {
+				snapshot.invalidate();
+			}
+			for (Map.Entry<ReceiveCommand, Pending> entry : commands.entrySet()) {
+				ReceiveCommand command = entry.getKey();
+				Pending pending = entry.getValue();
+				if (command.getResult() == ReceiveCommand.Result.OK) {
+					for (String step : pending.steps) {
+						pending.report.newChild(step).modified();
+					}
+				} else {
+					String message = command.getRefName() + ": " + command.getResult();
+					if (command.getMessage() != null) {
+						message += " (" + command.getMessage() + ")";
+					}
+					pending.report.newChild(message).error();
+				}
+			}
+		} finally {
+			state.reachability.close();
 		}
 	}
 
-	private static boolean tryFastForward(Repository repo, Ref ref, Ref target, Report report)
-			throws GitAPIException, IOException {
+	private static boolean tryFastForward(Repository repo, RepositorySnapshot snapshot, State state, Ref ref,
+			Ref target, Report report) throws GitAPIException, IOException {
 		if (ref == null || target == null) {
 			return false;
 		}
 		target = repo.peel(target);
-		if (!ref.equals(repo.getRef(Constants.HEAD).getTarget())) {
-			try (RevWalk revWalk = new RevWalk(repo)) {
-				ObjectId targetId = target.getPeeledObjectId();
-				if (targetId == null) {
-					targetId = target.getObjectId();
-				}
-
-				RevCommit targetCommit = revWalk.lookupCommit(targetId);
-				ObjectId sourceId = ref.getObjectId();
-				RevCommit sourceCommit = revWalk.lookupCommit(sourceId);
-				if (revWalk.isMergedInto(sourceCommit, targetCommit)) {
-					RefUpdate refUpdate = repo.updateRef(ref.getName());
-					refUpdate.setNewObjectId(targetCommit);
-					refUpdate.setRefLogMessage("Fast forward", false);
-					refUpdate.setExpectedOldObjectId(sourceId);
-					Result rc = refUpdate.update();
-					switch (rc) {
-					case NEW:
-					case FAST_FORWARD:
-						report.newChild(ref.getName() + " -> " + target.getName()).modified();
-						return true;
-					case REJECTED:
-					case LOCK_FAILURE:
-						report.newErrorChild(new ConcurrentRefUpdateException(JGitText.get().couldNotLockHEAD,
-								refUpdate.getRef(), rc));
-						break;
-					case NO_CHANGE:
-						break;
-					default:
-						report.newErrorChild(new JGitInternalException(MessageFormat
-								.format(JGitText.get().updatingRefFailed, ref.getName(), targetId.toString(), rc)));
-						break;
-					}
-				}
+		if (repo.isBare() || !ref.equals(snapshot.getHead().getTarget())) {
+			ObjectId targetId = target.getPeeledObjectId();
+			if (targetId == null) {
+				targetId = target.getObjectId();
+			}
+			Pending pending = state.pending.get(ref.getName());
+			ObjectId sourceId = pending == null ? ref.getObjectId() : pending.newId;
+			if (sourceId.equals(targetId) || !state.reachability.isMergedInto(sourceId, targetId)) {
+				return false;
+			}
+			File worktree = snapshot.getWorktreeBranches().get(ref.getName());
+			if (worktree != null) {
+				report.newChild("Not fast-forwarding " + ref.getName() + " to " + target.getName()
+						+ ": checked out in " + worktree);
 				return false;
 			}
+			if (pending == null) {
+				pending = new Pending(ref.getObjectId(), report);
+				state.pending.put(ref.getName(), pending);
+			}
+			pending.newId = targetId;
+			pending.steps.add(ref.getName() + " -> " + target.getName());
+			return true;
 		}
 		try {
 			MergeResult result = Git.wrap(repo).merge().setFastForward(MergeCommand.FastForwardMode.FF_ONLY)
 					.include(target.getTarget()).call();
+			snapshot.invalidate();
 			if (result.getMergeStatus() == MergeResult.MergeStatus.ALREADY_UP_TO_DATE) {
 				// Ignore
 			} else if (result.getMergeStatus() == MergeResult.MergeStatus.FAST_FORWARD) {
@@ -102,4 +140,24 @@ private static boolean tryFastForward(Repository repo, Ref ref, Ref target, Repo
 		return false;
 	}
 
+	static final class State {
+		private final Reachability reachability;
+		private final Map<String, Pending> pending = Collections.synchronizedMap(new LinkedHashMap<>());
+
+		private State(RepositorySnapshot snapshot) {
+			this.reachability = new Reachability(snapshot);
+		}
+	}
+
+	private static final class Pending {
+		private final ObjectId oldId;
+		private final Report report;
+		private final List<String> steps = new ArrayList<>();
+		private ObjectId newId;
+
+		private Pending(ObjectId oldId, Report report) {
+			this.oldId = oldId;
+			this.report = report;
+		}
+	}
 }
@@ -16,10 +16,15 @@
 package jbyoshi.gitupdate.processor;
 
 import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.errors.*;
 import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.*;
 import org.eclipse.jgit.transport.*;
 
 import jbyoshi.gitupdate.*;
@@ -27,33 +32,255 @@
 public final class Fetch extends RemoteProcessor {
 
 	@Override
-	public void process(Repository repo, Git git, String remote, String fullRemote, Report report)
-			throws GitAPIException, IOException {
-		FetchResult result = git.fetch().setRemoveDeletedRefs(true).setCredentialsProvider(Prompts.INSTANCE)
-				.setRemote(remote).call();
+	protected void prepare(Repository repo, String remote) throws Exception {
+		if (Options.get().useSharedCache()) {
+			SharedCache.update(new RemoteConfig(repo.getConfig(), remote));
+		}
+	}
+
+	@Override
+	public void process(Repository repo, Git git, RepositorySnapshot snapshot, String remote, String fullRemote,
+			int timeout, Report report) throws GitAPIException, IOException, URISyntaxException {
+		RemoteConfig config = new RemoteConfig(repo.getConfig(), remote);
+		List<RefSpec> specs = config.getFetchRefSpecs();
+		TagOpt tags = config.getTagOpt() != TagOpt.NO_TAGS && areTagsDue(repo, remote) ? config.getTagOpt()
+				: TagOpt.NO_TAGS;
+		SharedCache.Entry cache = Options.get().useSharedCache() ? SharedCache.get(config) : null;
+		if (cache != null) {
+			if (Options.get().isTrackedFetch()) {
+				specs = getTrackedSpecs(snapshot, remote, specs, cache.getRefs());
+				if (specs.isEmpty()) {
+					return;
+				}
+			}
+			if (!Options.get().isFullFetch() && Advertisements.isUpToDate(snapshot, cache.getRefs(), specs, tags)) {
+				return;
+			}
+			fetch(snapshot, git.fetch().setRemote(cache.directory.getPath()).setRefSpecs(specs), tags, timeout,
+					report);
+		} else {
+			// A fresh advertisement costs as much as the fetch itself, which
+			// stops after reading it when nothing changed.
+			Map<String, ObjectId> cached = Options.get().isFullFetch() ? null
+					: Advertisements.getCached(repo, remote);
+			if (cached != null && Advertisements.isUpToDate(snapshot, cached,
+					Options.get().isTrackedFetch() ? getTrackedSpecs(snapshot, remote, specs, cached) : specs, tags)) {
+				return;
+			}
+			if (Options.get().isTrackedFetch()) {
+				fetchTracked(repo, snapshot, config, tags, timeout, report);
+			} else {
+				FetchResult result = fetch(snapshot, git.fetch().setRemote(remote), tags, timeout, report);
+				Advertisements.put(repo, remote, Advertisements.fromRefs(result.getAdvertisedRefs()));
+			}
+		}
+		if (tags != TagOpt.NO_TAGS) {
+			tagsFetched(repo, remote);
+		}
+	}
+
+	private static FetchResult fetch(RepositorySnapshot snapshot, FetchCommand fetch, TagOpt tags, int timeout,
+			Report report) throws GitAPIException, IOException {
+		FetchResult result;
+		try {
+			result = fetch.setRemoveDeletedRefs(true).setCredentialsProvider(Prompts.INSTANCE).setTimeout(timeout)
+					.setTagOpt(tags).call();
+		} finally {
+			snapshot.invalidate();
+		}
 		for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
 			if (update.getRemoteName().equals(Constants.R_HEADS + Constants.HEAD)) {
 				continue;
 			}
-			StringBuilder text = new StringBuilder(Utils.getShortBranch(update.getRemoteName())).append(": ");
-			String oldId = update.getOldObjectId().name();
-			if (update.getOldObjectId().equals(ObjectId.zeroId())) {
-				oldId = "new branch";
-			}
-			String newId = update.getNewObjectId().name();
-			if (update.getNewObjectId().equals(ObjectId.zeroId())) {
-				newId = "deleted";
-				for (String branch : Utils.getLocalBranches(repo).keySet()) {
-					if (update.getLocalName()
-							.equals(new BranchConfig(repo.getConfig(), branch).getRemoteTrackingBranch())) {
-						repo.getConfig().unset("branches", branch, "remote");
-						repo.getConfig().save();
+			reportUpdate(snapshot, update.getRemoteName(), update.getLocalName(), update.getOldObjectId(),
+					update.getNewObjectId(), report);
+		}
+		return result;
+	}
+
+	// Fetches only the tracked branches, deciding what to ask for from the
+	// advertisement of the same connection.
+	private static void fetchTracked(Repository repo, RepositorySnapshot snapshot, RemoteConfig config,
+			TagOpt tags, int timeout, Report report) throws IOException {
+		Map<RefSpec, Ref> branches = new LinkedHashMap<>();
+		List<Ref> newTags = new ArrayList<>();
+		try (Transport transport = Transport.open(repo, config)) {
+			transport.setCredentialsProvider(Prompts.INSTANCE);
+			transport.setTimeout(timeout);
+			transport.setTagOpt(tags);
+			try (FetchConnection connection = transport.openFetch()) {
+				Map<String, ObjectId> advertised = Advertisements.fromRefs(connection.getRefs());
+				Advertisements.put(repo, config.getName(), advertised);
+				List<RefSpec> specs = getTrackedSpecs(snapshot, config.getName(), config.getFetchRefSpecs(),
+						advertised);
+				if (Advertisements.isUpToDate(snapshot, advertised, specs, tags)) {
+					return;
+				}
+				Set<Ref> want = new LinkedHashSet<>();
+				for (RefSpec spec : specs) {
+					Ref ref = connection.getRef(spec.getSource());
+					Ref local = snapshot.getRef(spec.getDestination());
+					if (local != null && ref.getObjectId().equals(local.getObjectId())) {
+						continue;
+					}
+					branches.put(spec, ref);
+					if (!repo.hasObject(ref.getObjectId())) {
+						want.add(ref);
+					}
+				}
+				for (Ref ref : connection.getRefs()) {
+					if (tags == TagOpt.NO_TAGS || !ref.getName().startsWith(Constants.R_TAGS)
+							|| ref.getName().endsWith("^{}") || snapshot.getRef(ref.getName()) != null) {
+						continue;
 					}
+					newTags.add(ref);
+					if ((tags == TagOpt.FETCH_TAGS || repo.hasObject(getTarget(ref)))
+							&& !repo.hasObject(ref.getObjectId())) {
+						want.add(ref);
+					}
+				}
+				if (!want.isEmpty()) {
+					connection.fetch(NullProgressMonitor.INSTANCE, want, Collections.<ObjectId> emptySet());
+				}
+			}
+		}
+
+		try (RevWalk walk = new RevWalk(repo)) {
+			for (Map.Entry<RefSpec, Ref> branch : branches.entrySet()) {
+				updateRef(repo, snapshot, walk, branch.getValue(), branch.getKey().getDestination(),
+						branch.getKey().isForceUpdate(), report);
+			}
+			// Tags that came along with the branches are followed as well.
+			for (Ref tag : newTags) {
+				if (repo.hasObject(tag.getObjectId()) && repo.hasObject(getTarget(tag))) {
+					updateRef(repo, snapshot, walk, tag, tag.getName(), false, report);
+				}
+			}
+		} finally {
+			snapshot.invalidate();
+		}
+	}
+
+	private static ObjectId getTarget(Ref ref) {
+		return ref.getPeeledObjectId() != null ? ref.getPeeledObjectId() : ref.getObjectId();
+	}
+
+	private static void updateRef(Repository repo, RepositorySnapshot snapshot, RevWalk walk, Ref remoteRef,
+			String localName, boolean force, Report report) throws IOException {
+		Ref local = snapshot.getRef(localName);
+		ObjectId oldId = local == null ? ObjectId.zeroId() : local.getObjectId();
+		RefUpdate update = repo.updateRef(localName);
+		update.setExpectedOldObjectId(oldId);
+		update.setNewObjectId(remoteRef.getObjectId());
+		update.setForceUpdate(force);
+		update.setRefLogMessage("fetch", false);
+		RefUpdate.Result result = update.update(walk);
+		if (result == RefUpdate.Result.NEW || result == RefUpdate.Result.FAST_FORWARD
+				|| result == RefUpdate.Result.FORCED) {
+			reportUpdate(snapshot, remoteRef.getName(), localName, oldId, remoteRef.getObjectId(), report);
+		} else if (result != RefUpdate.Result.NO_CHANGE) {
+			report.newChild(localName + ": " + result).error();
+		}
+	}
+
+	private static void reportUpdate(RepositorySnapshot snapshot, String remoteName, String localName,
+			ObjectId oldObjectId, ObjectId newObjectId, Report report) throws IOException {
+		StringBuilder text = new StringBuilder(Utils.getShortBranch(remoteName)).append(": ");
+		String oldId = oldObjectId.name();
+		if (oldObjectId.equals(ObjectId.zeroId())) {
+			oldId = "new branch";
+		}
+		String newId = newObjectId.name();
+		if (newObjectId.equals(ObjectId.zeroId())) {
+			newId = "deleted";
+			for (String branch : snapshot.getBranchesTracking(localName)) {
+				snapshot.unsetConfig(ConfigConstants.CONFIG_BRANCH_SECTION, branch, ConfigConstants.CONFIG_KEY_REMOTE);
+			}
+		}
+		text.append(oldId).append(" -> ").append(newId);
+		report.newChild(text.toString()).modified();
+	}
+
+	// Only the branches that local branches track, or that FastForward may
+	// fast-forward them to, limited to those the remote still has.
+	private static List<RefSpec> getTrackedSpecs(RepositorySnapshot snapshot, String remote,
+			List<RefSpec> configured, Map<String, ObjectId> advertised) throws IOException {
+		Set<String> sources = new LinkedHashSet<>();
+		for (String branch : snapshot.getLocalBranches().keySet()) {
+			String pushRemote = snapshot.getPushRemote(branch);
+			if (remote.equals(snapshot.getRemote(branch)) && snapshot.getMerge(branch) != null) {
+				sources.add(snapshot.getMerge(branch));
+			}
+			if (remote.equals(pushRemote) || (pushRemote == null && remote.equals("upstream"))) {
+				sources.add(Constants.R_HEADS + branch);
+			}
+		}
+		List<RefSpec> specs = new ArrayList<>();
+		for (String source : sources) {
+			if (!advertised.containsKey(source)) {
+				continue;
+			}
+			for (RefSpec spec : configured) {
+				if (spec.getDestination() != null && spec.matchSource(source)) {
+					specs.add(spec.expandFromSource(source));
+					break;
 				}
 			}
-			text.append(oldId).append(" -> ").append(newId);
-			report.newChild(text.toString()).modified();
 		}
+		return specs;
+	}
+
+	private static File getTagsFile(Repository repo) {
+		return new File(repo.getDirectory(), "gitupdate/tags-fetched");
+	}
+
+	private static synchronized boolean areTagsDue(Repository repo, String remote) throws IOException {
+		long interval = TimeUnit.HOURS.toMillis(Options.get().getTagsEvery());
+		if (interval == 0) {
+			return true;
+		}
+		String last = loadTagTimes(repo).getProperty(remote);
+		if (last == null) {
+			return true;
+		}
+		try {
+			return System.currentTimeMillis() - Long.parseLong(last.trim()) >= interval;
+		} catch (NumberFormatException e) {
+			// A damaged entry only means the tags are fetched again.
+			return true;
+		}
+	}
+
+	private static synchronized void tagsFetched(Repository repo, String remote) throws IOException {
+		if (Options.get().getTagsEvery() == 0) {
+			return;
+		}
+		Properties times = loadTagTimes(repo);
+		times.setProperty(remote, Long.toString(System.currentTimeMillis()));
+		File file = getTagsFile(repo);
+		Files.createDirectories(file.toPath().getParent());
+		try (OutputStream out = Files.newOutputStream(file.toPath())) {
+			times.store(out, null);
+		}
+	}
+
+	private static Properties loadTagTimes(Repository repo) throws IOException {
+		Properties times = new Properties();
+		File file = getTagsFile(repo);
+		if (file.isFile()) {
+			try (InputStream in = Files.newInputStream(file.toPath())) {
+				times.load(in);
+			} catch (IllegalArgumentException e) {
+				e.printStackTrace();
+				times.clear();
+			}
+		}
+		return times;
+	}
+
+	@Override
+	protected void finish(Repository repo, RepositorySnapshot snapshot, Report report) throws IOException {
+		CommitGraph.get(snapshot).update(snapshot);
 	}
 
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.processor;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.jgit.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.transport.*;
+
+import com.google.common.util.concurrent.*;
+
+import jbyoshi.gitupdate.*;
+
+final class Hosts {
+	private static final long MAX_BACKOFF_MILLIS = 30_000;
+	private static final Map<String, Host> hosts = new ConcurrentHashMap<>();
+	private static volatile ExecutorService executor;
+
+	private Hosts() {
+	}
+
+	static Task newRemoteGroup(Task root, String text) {
+		if (!Options.get().isAsyncNetwork()) {
+			return root.newChild(text);
+		}
+		return root.newConcurrentChild(text, getExecutor());
+	}
+
+	private static ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized (Hosts.class) {
+				if (executor == null) {
+					executor = Executors.newCachedThreadPool(Threads.newFactory("GitUpdate network %d", true));
+				}
+			}
+		}
+		return executor;
+	}
+
+	static String getHost(Repository repo, String remote, boolean push) {
+		RemoteConfig config;
+		try {
+			config = new RemoteConfig(repo.getConfig(), remote);
+		} catch (URISyntaxException e) {
+			return remote;
+		}
+		List<URIish> uris = push && !config.getPushURIs().isEmpty() ? config.getPushURIs() : config.getURIs();
+		return uris.isEmpty() ? "" : getHost(uris.get(0));
+	}
+
+	static String getHost(URIish uri) {
+		return uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ENGLISH);
+	}
+
+	// Runs a remote operation with a timeout adapted to the host's observed
+	// latency, retrying network failures with exponential backoff. Once a host
+	// has had too many operations fail in a row, even after their retries,
+	// operations on it fail immediately.
+	static <T> T call(String host, Operation<T> operation) throws Exception {
+		Host state = hosts.computeIfAbsent(host, name -> new Host());
+		for (int attempt = 0;; attempt++) {
+			state.checkAvailable(host);
+			if (state.rate != null) {
+				state.rate.acquire();
+			}
+			state.permits.acquire();
+			long start = System.nanoTime();
+			try {
+				T result = operation.run(state.getTimeout());
+				state.succeeded(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				return result;
+			} catch (Exception e) {
+				if (!isTransient(e)) {
+					throw e;
+				}
+				if (attempt >= Options.get().getRetries()) {
+					state.failed();
+					throw e;
+				}
+			} finally {
+				state.permits.release();
+			}
+			Thread.sleep(Math.min(1000L << Math.min(attempt, 5), MAX_BACKOFF_MILLIS));
+		}
+	}
+
+	private static boolean isTransient(Throwable e) {
+		for (; e != null; e = e.getCause()) {
+			if (e instanceof SocketException || e instanceof InterruptedIOException
+					|| e instanceof UnknownHostException) {
+				return true;
+			}
+			if (e instanceof TransportException && e.getMessage() != null
+					&& e.getMessage().toLowerCase(Locale.ENGLISH).contains("timeout")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	interface Operation<T> {
+		T run(int timeout) throws Exception;
+	}
+
+	private static final class Host {
+		private final Semaphore permits = new Semaphore(Options.get().getPerHostLimit());
+		private final RateLimiter rate = Options.get().getHostRate() > 0
+				? RateLimiter.create(Options.get().getHostRate()) : null;
+		private int failures;
+		private long averageMillis = -1;
+
+		private synchronized void checkAvailable(String host) throws IOException {
+			if (failures >= Options.get().getHostFailures()) {
+				throw new IOException(
+						"Skipped: " + (host.isEmpty() ? "local" : host) + " failed " + failures + " times in a row");
+			}
+		}
+
+		// This is an idle timeout, so it never drops below --timeout: a quick
+		// no-op fetch says nothing about how long a server may stay silent
+		// while preparing a large pack. Slow hosts get four times their
+		// average operation time instead.
+		private synchronized int getTimeout() {
+			int min = Options.get().getTimeout();
+			if (averageMillis < 0) {
+				return min;
+			}
+			long timeout = TimeUnit.MILLISECONDS.toSeconds(averageMillis * 4) + 1;
+			return (int) Math.min(Math.max(timeout, min), Integer.MAX_VALUE);
+		}
+
+		private synchronized void succeeded(long millis) {
+			failures = 0;
+			averageMillis = averageMillis < 0 ? millis : (averageMillis * 3 + millis) / 4;
+		}
+
+		private synchronized void failed() {
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.processor;
+
+// Smart HTTP goes through HttpURLConnection, which keeps connections alive
+// between requests on its own. Its pool only keeps a few idle connections per
+// host, though, fewer than the operations --per-host allows at once.
+public final class HttpPool {
+	private HttpPool() {
+	}
+
+	public static void install(int connectionsPerHost) {
+		System.setProperty("http.maxConnections", Integer.toString(connectionsPerHost));
+	}
+}
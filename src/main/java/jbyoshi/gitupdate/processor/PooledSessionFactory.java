@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.processor;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.jgit.errors.*;
+import org.eclipse.jgit.transport.*;
+import org.eclipse.jgit.util.*;
+
+import com.jcraft.jsch.*;
+
+import jbyoshi.gitupdate.*;
+
+// Keeps authenticated SSH sessions per user, host and port, and opens a new
+// channel on one of them for every command. Sessions nobody is using are
+// closed after --ssh-idle seconds.
+public final class PooledSessionFactory extends SshSessionFactory {
+	// Stays below OpenSSH's default MaxSessions of 10; more concurrent commands
+	// for one host get another session.
+	private static final int MAX_CHANNELS = 8;
+
+	private final Map<String, Host> hosts = new HashMap<>();
+	private final ScheduledExecutorService evictor = Executors
+			.newSingleThreadScheduledExecutor(Threads.newFactory("GitUpdate SSH eviction %d", false));
+
+	@Override
+	public RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms)
+			throws TransportException {
+		String key = uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort();
+		Host host;
+		Pooled pooled = null;
+		boolean connect = false;
+		synchronized (this) {
+			host = hosts.computeIfAbsent(key, name -> new Host());
+			for (Pooled candidate : host.sessions) {
+				if (candidate.users < MAX_CHANNELS) {
+					pooled = candidate;
+					break;
+				}
+			}
+			if (pooled == null) {
+				pooled = new Pooled(host);
+				host.sessions.add(pooled);
+				connect = true;
+			}
+			pooled.users++;
+		}
+		// Connecting may take long or wait for a login prompt, so it happens
+		// outside the lock; others wanting the same session wait for it here.
+		if (connect) {
+			try {
+				pooled.session.complete(host.connector.getSession(uri, credentialsProvider, fs, tms));
+			} catch (TransportException | RuntimeException e) {
+				pooled.session.completeExceptionally(e);
+			}
+		}
+		try {
+			pooled.session.join();
+		} catch (CompletionException e) {
+			discard(pooled);
+			release(pooled);
+			if (e.getCause() instanceof TransportException) {
+				throw (TransportException) e.getCause();
+			}
+			throw new TransportException(uri, e.getCause().getMessage(), e.getCause());
+		}
+		return new Lease(pooled, uri, credentialsProvider, fs, tms);
+	}
+
+	private synchronized void release(Pooled pooled) {
+		if (--pooled.users > 0) {
+			return;
+		}
+		if (!pooled.host.sessions.contains(pooled)) {
+			disconnect(pooled);
+			return;
+		}
+		long released = pooled.released = System.nanoTime();
+		evictor.schedule(() -> {
+			synchronized (this) {
+				if (pooled.users == 0 && pooled.released == released && pooled.host.sessions.remove(pooled)) {
+					disconnect(pooled);
+				}
+			}
+		}, Options.get().getSshIdle(), TimeUnit.SECONDS);
+	}
+
+	// Stops handing out a session whose connection failed or went away.
+	private synchronized void discard(Pooled pooled) {
+		pooled.host.sessions.remove(pooled);
+	}
+
+	private static void disconnect(Pooled pooled) {
+		RemoteSession session = pooled.session.getNow(null);
+		if (session != null) {
+			session.disconnect();
+		}
+	}
+
+	// JGit's factory connects while holding its own lock, so every host gets
+	// its own instance to keep hosts from waiting on each other.
+	private static final class Connector extends JschConfigSessionFactory {
+		@Override
+		protected void configure(OpenSshConfig.Host hc, Session session) {
+			// Idle sessions must not keep the program running.
+			session.setDaemonThread(true);
+		}
+	}
+
+	private static final class Host {
+		private final Connector connector = new Connector();
+		private final List<Pooled> sessions = new ArrayList<>();
+	}
+
+	private static final class Pooled {
+		private final Host host;
+		private final CompletableFuture<RemoteSession> session = new CompletableFuture<>();
+		private int users;
+		private long released;
+
+		private Pooled(Host host) {
+			this.host = host;
+		}
+	}
+
+	private final class Lease implements RemoteSession {
+		private Pooled pooled;
+		private final URIish uri;
+		private final CredentialsProvider credentialsProvider;
+		private final FS fs;
+		private final int tms;
+		private boolean released;
+
+		private Lease(Pooled pooled, URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) {
+			this.pooled = pooled;
+			this.uri = uri;
+			this.credentialsProvider = credentialsProvider;
+			this.fs = fs;
+			this.tms = tms;
+		}
+
+		@Override
+		public Process exec(String commandName, int timeout) throws IOException {
+			try {
+				return pooled.session.join().exec(commandName, timeout);
+			} catch (IOException e) {
+				// Reused sessions can be closed by the server at any time; try
+				// once more on a fresh one.
+				Pooled broken = pooled;
+				discard(broken);
+				Lease fresh;
+				try {
+					fresh = (Lease) getSession(uri, credentialsProvider, fs, tms);
+				} finally {
+					release(broken);
+				}
+				pooled = fresh.pooled;
+				try {
+					return pooled.session.join().exec(commandName, timeout);
+				} catch (IOException e1) {
+					e1.addSuppressed(e);
+					throw e1;
+				}
+			}
+		}
+
+		@Override
+		public void disconnect() {
+			if (!released) {
+				released = true;
+				release(pooled);
+			}
+		}
+	}
+}
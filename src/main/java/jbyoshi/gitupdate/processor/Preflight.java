@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.processor;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.jgit.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.transport.*;
+
+import jbyoshi.gitupdate.*;
+
+// Connects to the remotes of every repository before any work starts, so that
+// all credential prompts happen up front and land in the credential cache.
+// Hosts are probed at the same time. A host is done once one of its remotes
+// asks for credentials or fails; until then, its remotes are probed in turn,
+// since public ones prove nothing.
+public final class Preflight {
+	private final Map<String, Set<URIish>> logins = new LinkedHashMap<>();
+
+	public void add(Repository repo, Report report) {
+		List<RemoteConfig> remotes;
+		try {
+			remotes = RemoteConfig.getAllRemoteConfigs(repo.getConfig());
+		} catch (Exception e) {
+			report.newErrorChild(e);
+			return;
+		}
+		for (RemoteConfig remote : remotes) {
+			List<URIish> uris = new ArrayList<>(remote.getURIs());
+			uris.addAll(remote.getPushURIs());
+			for (URIish uri : uris) {
+				if (uri.getHost() != null) {
+					logins.computeIfAbsent(Prompts.getLoginKey(uri), key -> new LinkedHashSet<>()).add(uri);
+				}
+			}
+		}
+	}
+
+	public void run(Report report) {
+		ExecutorService executor = Executors.newCachedThreadPool(
+				Threads.newFactory("GitUpdate preflight %d", Options.get().isAsyncNetwork()));
+		try {
+			List<CompletableFuture<Void>> probes = new ArrayList<>();
+			for (Set<URIish> uris : logins.values()) {
+				probes.add(CompletableFuture.runAsync(() -> probe(uris, report), executor));
+			}
+			CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).join();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void probe(Collection<URIish> uris, Report report) {
+		for (URIish uri : uris) {
+			Probe probe = new Probe();
+			try {
+				Hosts.call(Hosts.getHost(uri), timeout -> {
+					try (Transport transport = Transport.open(uri)) {
+						transport.setCredentialsProvider(probe);
+						transport.setTimeout(timeout);
+						transport.openFetch().close();
+					}
+					return null;
+				});
+			} catch (Exception e) {
+				report.newChild(uri.getHost() + ": " + e.getMessage()).error();
+				return;
+			}
+			if (probe.asked) {
+				return;
+			}
+		}
+	}
+
+	private static final class Probe extends CredentialsProvider {
+		private boolean asked;
+
+		@Override
+		public boolean isInteractive() {
+			return Prompts.INSTANCE.isInteractive();
+		}
+
+		@Override
+		public boolean supports(CredentialItem... items) {
+			return Prompts.INSTANCE.supports(items);
+		}
+
+		@Override
+		public boolean get(URIish uri, CredentialItem... items) throws UnsupportedCredentialItem {
+			asked = true;
+			return Prompts.INSTANCE.get(uri, items);
+		}
+
+		@Override
+		public void reset(URIish uri) {
+			Prompts.INSTANCE.reset(uri);
+		}
+	}
+}
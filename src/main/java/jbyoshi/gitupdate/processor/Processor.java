@@ -21,5 +21,6 @@
 import jbyoshi.gitupdate.*;
 
 public abstract class Processor {
-	public abstract void registerTasks(Repository repo, Git git, Task root) throws Exception;
+	public abstract void registerTasks(Repository repo, Git git, RepositorySnapshot snapshot, Task root)
+			throws Exception;
 }
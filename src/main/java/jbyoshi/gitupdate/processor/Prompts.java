@@ -26,10 +26,34 @@
 final class Prompts extends CredentialsProvider {
 
 	private final Map<String, Optional<String>> textPrompts = new HashMap<>();
+	// Logins for this run only, by scheme, user, host and port.
+	private final Map<String, UsernamePasswordPair> logins = new HashMap<>();
 
 	static final Prompts INSTANCE = new Prompts();
 
 	private Prompts() {
+		Runtime.getRuntime().addShutdownHook(new Thread(this::clear, "GitUpdate credential cleanup"));
+	}
+
+	static String getLoginKey(URIish uri) {
+		return uri.getScheme() + "://" + (uri.getUser() == null ? "" : uri.getUser() + "@") + uri.getHost() + ":"
+				+ uri.getPort();
+	}
+
+	private synchronized void clear() {
+		for (UsernamePasswordPair login : logins.values()) {
+			login.clobber();
+		}
+		logins.clear();
+		textPrompts.clear();
+	}
+
+	@Override
+	public synchronized void reset(URIish uri) {
+		UsernamePasswordPair login = logins.remove(getLoginKey(uri));
+		if (login != null) {
+			login.clobber();
+		}
 	}
 
 	@Override
@@ -52,20 +76,22 @@ public boolean isInteractive() {
 	}
 
 	@Override
-	public boolean get(URIish uri, CredentialItem... items) throws UnsupportedCredentialItem {
+	public synchronized boolean get(URIish uri, CredentialItem... items) throws UnsupportedCredentialItem {
 		for (int i = 0; i < items.length; i++) {
 			CredentialItem item = items[i];
 			if (item instanceof StringType) {
 				if (item instanceof Username && i < items.length - 1 && items[i + 1] instanceof Password) {
 					Password password = (Password) items[i + 1];
-					// TODO cache this?
-					UsernamePasswordPair login = UI.INSTANCE.promptLogin("Login for " + uri);
+					UsernamePasswordPair login = logins.get(getLoginKey(uri));
 					if (login == null) {
-						return false;
+						login = UI.INSTANCE.promptLogin("Login for " + uri);
+						if (login == null) {
+							return false;
+						}
+						logins.put(getLoginKey(uri), login);
 					}
 					((StringType) item).setValue(login.getUsername());
 					password.setValue(login.getPassword());
-					login.clobber();
 					i++;
 				} else {
 					String prompt = item.getPromptText();
@@ -15,6 +15,7 @@
  */
 package jbyoshi.gitupdate.processor;
 
+import java.io.*;
 import java.util.*;
 
 import org.eclipse.jgit.api.*;
@@ -28,14 +29,22 @@
 public final class Push extends Processor {
 
 	@Override
-	public void registerTasks(Repository repo, Git git, Task root) throws Exception {
-		Task me = root.newChild(getClass().getSimpleName());
+	public void registerTasks(Repository repo, Git git, RepositorySnapshot snapshot, Task root) throws Exception {
+		Task me = Hosts.newRemoteGroup(root, getClass().getSimpleName());
+		Reachability reachability = new Reachability(snapshot);
+		me.onFinish(report -> {
+			try {
+				reachability.close();
+			} catch (IOException e) {
+				report.newErrorChild(e);
+			}
+		});
 		// Group the branches by their remotes.
 		Multimap<String, String> branchList = HashMultimap.create();
-		for (String branch : Utils.getLocalBranches(repo).keySet()) {
-			String remote = Utils.getPushRemote(repo, branch);
+		for (String branch : snapshot.getLocalBranches().keySet()) {
+			String remote = snapshot.getPushRemote(branch);
 			if (remote == null) {
-				remote = new BranchConfig(repo.getConfig(), branch).getRemote();
+				remote = snapshot.getRemote(branch);
 			}
 			if (remote != null) {
 				branchList.put(remote, branch);
@@ -44,7 +53,10 @@ public void registerTasks(Repository repo, Git git, Task root) throws Exception
 		for (Map.Entry<String, Collection<String>> remote : branchList.asMap().entrySet()) {
 			me.newChild(remote.getKey(), report -> {
 				try {
-					process(repo, git, remote.getKey(), remote.getValue(), report);
+					Hosts.call(Hosts.getHost(repo, remote.getKey(), true), timeout -> {
+						process(git, snapshot, reachability, remote.getKey(), remote.getValue(), timeout, report);
+						return null;
+					});
 				} catch (Exception e) {
 					report.newErrorChild(e);
 				}
@@ -52,32 +64,41 @@ public void registerTasks(Repository repo, Git git, Task root) throws Exception
 		}
 	}
 
-	private static void process(Repository repo, Git git, String remote, Collection<String> branches,
-			Report report) throws Exception {
-		// Figure out if anything needs to be pushed.
+	private static void process(Git git, RepositorySnapshot snapshot, Reachability reachability, String remote,
+			Collection<String> branches, int timeout, Report report) throws Exception {
+		// Figure out what needs to be pushed. Branches that are behind or have
+		// diverged from the remote would only be rejected, so leave them out.
+		// Each branch is pushed to the same name on this remote, which is not
+		// necessarily its upstream, so compare against that.
 		Map<String, ObjectId> oldIds = new HashMap<>();
-		boolean canPush = false;
 		for (String branch : branches) {
-			BranchConfig config = new BranchConfig(repo.getConfig(), branch);
-			ObjectId target = repo.getRef(branch).getObjectId();
+			ObjectId target = snapshot.getRef(Constants.R_HEADS + branch).getObjectId();
 
-			Ref remoteRef = repo.getRef(config.getRemoteTrackingBranch());
-			if (remoteRef == null || !target.equals(remoteRef.getObjectId())) {
-				canPush = true;
+			Ref remoteRef = snapshot.getRef(Constants.R_REMOTES + remote + "/" + branch);
+			if (remoteRef == null) {
+				oldIds.put(branch, ObjectId.zeroId());
+			} else if (!target.equals(remoteRef.getObjectId())
+					&& reachability.isMergedInto(remoteRef.getObjectId(), target)) {
+				oldIds.put(branch, remoteRef.getObjectId());
 			}
-			oldIds.put(branch, remoteRef == null ? ObjectId.zeroId() : remoteRef.getObjectId());
 		}
 
-		if (!canPush) {
+		if (oldIds.isEmpty()) {
 			return;
 		}
 
-		PushCommand push = git.push().setCredentialsProvider(Prompts.INSTANCE).setTimeout(5)
-				.setRemote(remote);
-		for (String branch : branches) {
+		PushCommand push = git.push().setCredentialsProvider(Prompts.INSTANCE).setTimeout(timeout)
+				.setAtomic(Options.get().isAtomicPush()).setRemote(remote);
+		for (String branch : oldIds.keySet()) {
 			push.add(Constants.R_HEADS + branch);
 		}
-		for (PushResult result : push.call()) {
+		Iterable<PushResult> results;
+		try {
+			results = push.call();
+		} finally {
+			snapshot.invalidate();
+		}
+		for (PushResult result : results) {
 			for (RemoteRefUpdate update : result.getRemoteUpdates()) {
 				if (update.getStatus() == RemoteRefUpdate.Status.OK) {
 					String branchName = Utils.getShortBranch(update.getSrcRef());
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.processor;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.eclipse.jgit.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.*;
+
+import jbyoshi.gitupdate.*;
+
+// Answers "is this commit an ancestor of that one" for a whole repository with
+// one shared walk. Ancestry between two commits never changes, so answers are
+// also remembered across runs.
+final class Reachability implements AutoCloseable {
+	private static final int MAX_ENTRIES = 10000;
+
+	private final RepositorySnapshot snapshot;
+	private final File file;
+	private final RevWalk walk;
+	private final Map<Pair, Boolean> known = new LinkedHashMap<Pair, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Pair, Boolean> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private CommitGraph graph;
+	private boolean loaded;
+	private boolean dirty;
+
+	Reachability(RepositorySnapshot snapshot) {
+		Repository repo = snapshot.getRepository();
+		this.snapshot = snapshot;
+		this.file = new File(repo.getDirectory(), "gitupdate/reachability");
+		this.walk = new RevWalk(repo);
+	}
+
+	// Loaded on first use, so that a Reachability opened early still sees
+	// answers saved by one that was closed in the meantime.
+	private void load() {
+		loaded = true;
+		if (!file.isFile()) {
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				if (parts.length == 3) {
+					known.put(new Pair(ObjectId.fromString(parts[0]), ObjectId.fromString(parts[1])),
+							parts[2].equals("1"));
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+			known.clear();
+		}
+	}
+
+	synchronized boolean isMergedInto(ObjectId source, ObjectId target) throws IOException {
+		if (source.equals(target)) {
+			return true;
+		}
+		if (!loaded) {
+			load();
+		}
+		Pair pair = new Pair(source.copy(), target.copy());
+		Boolean result = known.get(pair);
+		if (result != null) {
+			return result;
+		}
+		if (graph == null) {
+			graph = CommitGraph.get(snapshot);
+		}
+		result = graph.isAncestor(source, target);
+		if (result == null) {
+			try {
+				result = walk.isMergedInto(walk.parseCommit(source), walk.parseCommit(target));
+			} catch (IncorrectObjectTypeException e) {
+				return false;
+			}
+		}
+		known.put(pair, result);
+		dirty = true;
+		return result;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		walk.close();
+		if (!dirty) {
+			return;
+		}
+		Files.createDirectories(file.toPath().getParent());
+		File temp = new File(file.getPath() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.US_ASCII)) {
+			for (Map.Entry<Pair, Boolean> entry : known.entrySet()) {
+				writer.write(entry.getKey().source.name() + " " + entry.getKey().target.name() + " "
+						+ (entry.getValue() ? "1" : "0"));
+				writer.newLine();
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		dirty = false;
+	}
+
+	private static final class Pair {
+		private final ObjectId source;
+		private final ObjectId target;
+
+		private Pair(ObjectId source, ObjectId target) {
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		public int hashCode() {
+			return source.hashCode() * 31 + target.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Pair)) {
+				return false;
+			}
+			Pair other = (Pair) obj;
+			return source.equals(other.source) && target.equals(other.target);
+		}
+	}
+}
@@ -23,20 +23,41 @@
 abstract class RemoteProcessor extends Processor {
 
 	@Override
-	public void registerTasks(Repository repo, Git git, Task root) throws Exception {
-		Task me = root.newChild(getClass().getSimpleName());
-		for (String remote : repo.getRemoteNames()) {
+	public void registerTasks(Repository repo, Git git, RepositorySnapshot snapshot, Task root) throws Exception {
+		Task me = Hosts.newRemoteGroup(root, getClass().getSimpleName());
+		for (String remote : snapshot.getRemoteNames()) {
 			me.newChild(remote, report -> {
 				try {
-					process(repo, git, remote, Constants.R_REMOTES + remote + "/", report);
+					prepare(repo, remote);
+					Hosts.call(Hosts.getHost(repo, remote, false), timeout -> {
+						process(repo, git, snapshot, remote, Constants.R_REMOTES + remote + "/", timeout, report);
+						return null;
+					});
 				} catch (Exception e) {
 					report.newErrorChild(e);
 				}
 			});
 		}
+		me.onFinish(report -> {
+			try {
+				finish(repo, snapshot, report);
+			} catch (Exception e) {
+				report.newErrorChild(e);
+			}
+		});
 	}
 
-	public abstract void process(Repository repo, Git git, String remote, String fullRemote, Report report)
+	// Called before taking a permit for the remote's host, for anything that
+	// may have to wait on operations of other repositories.
+	protected void prepare(Repository repo, String remote) throws Exception {
+	}
+
+	// Called once all remotes of a repository have been processed.
+	protected void finish(Repository repo, RepositorySnapshot snapshot, Report report) throws Exception {
+	}
+
+	public abstract void process(Repository repo, Git git, RepositorySnapshot snapshot, String remote,
+			String fullRemote, int timeout, Report report)
 			throws Exception;
 
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.processor;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.jgit.api.*;
+import org.eclipse.jgit.api.errors.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.storage.file.*;
+import org.eclipse.jgit.transport.*;
+
+import com.google.common.collect.*;
+import com.google.common.hash.*;
+
+// One bare repository per remote URL, fetched at most once per run. Clones of
+// the same remote then fetch from it locally instead of from the network. The
+// first clone to need it fetches it; the others wait for that without holding
+// a host permit.
+final class SharedCache {
+	private static final File CACHE_DIR = new File(System.getProperty("user.home"), ".gitupdate/cache");
+	private static final List<RefSpec> SPECS = ImmutableList.of(new RefSpec("+refs/heads/*:refs/heads/*"),
+			new RefSpec("+refs/tags/*:refs/tags/*"));
+	private static final Map<String, CompletableFuture<Entry>> entries = new ConcurrentHashMap<>();
+
+	private SharedCache() {
+	}
+
+	// Fetches the cache for this remote if nobody has during this run, or
+	// waits for whoever is. Must not be called while holding a host permit.
+	static void update(RemoteConfig config) throws Exception {
+		String url = getUrl(config);
+		if (url == null) {
+			return;
+		}
+		CompletableFuture<Entry> future = new CompletableFuture<>();
+		CompletableFuture<Entry> existing = entries.putIfAbsent(url, future);
+		if (existing != null) {
+			existing.join();
+			return;
+		}
+		Entry entry = new Entry(url);
+		try {
+			Hosts.call(Hosts.getHost(config.getURIs().get(0)), timeout -> {
+				entry.fetch(timeout);
+				return null;
+			});
+		} finally {
+			future.complete(entry.refs == null ? null : entry);
+		}
+	}
+
+	// Returns null if the remote cannot be served from the cache, or if update
+	// has not fetched it successfully.
+	static Entry get(RemoteConfig config) {
+		String url = getUrl(config);
+		CompletableFuture<Entry> future = url == null ? null : entries.get(url);
+		return future == null ? null : future.getNow(null);
+	}
+
+	private static String getUrl(RemoteConfig config) {
+		if (config.getURIs().size() != 1 || config.getURIs().get(0).getHost() == null) {
+			return null;
+		}
+		for (RefSpec spec : config.getFetchRefSpecs()) {
+			if (!spec.getSource().startsWith(Constants.R_HEADS)) {
+				return null;
+			}
+		}
+		return config.getURIs().get(0).toString();
+	}
+
+	static final class Entry {
+		private final String url;
+		final File directory;
+		private volatile Map<String, ObjectId> refs;
+
+		private Entry(String url) {
+			this.url = url;
+			this.directory = new File(CACHE_DIR, Hashing.sha1().hashString(url, StandardCharsets.UTF_8) + ".git");
+		}
+
+		private void fetch(int timeout) throws GitAPIException, IOException {
+			try (Repository cache = new FileRepositoryBuilder().setGitDir(directory).setBare().build()) {
+				if (!cache.getObjectDatabase().exists()) {
+					cache.create(true);
+				}
+				Git.wrap(cache).fetch().setRemote(url).setRefSpecs(SPECS).setRemoveDeletedRefs(true)
+						.setTagOpt(TagOpt.NO_TAGS).setCredentialsProvider(Prompts.INSTANCE).setTimeout(timeout)
+						.call();
+				List<Ref> refs = new ArrayList<>();
+				for (Ref ref : cache.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+					refs.add(cache.peel(ref));
+				}
+				this.refs = Advertisements.fromRefs(refs);
+			}
+		}
+
+		Map<String, ObjectId> getRefs() {
+			return refs;
+		}
+	}
+}
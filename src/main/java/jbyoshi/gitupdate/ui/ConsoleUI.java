@@ -16,8 +16,22 @@
 package jbyoshi.gitupdate.ui;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
+// Lines are queued as report events arrive and written by a single thread, which
+// also keeps a status line with the number of repositories running, done and
+// failed at the bottom of the terminal. The lines of a running repository are
+// held back and queued as one block when it is done, so that repositories
+// running at the same time do not interleave.
 final class ConsoleUI implements UI {
+	private static final long FLUSH_MILLIS = 50;
+	private static final boolean STATUS_LINE = System.console() != null && !"dumb".equals(System.getenv("TERM"));
+	private static final Queue<Line> lines = new ConcurrentLinkedQueue<>();
+	private static final Object writeLock = new Object();
+	private static String status = "";
+	private static boolean closed;
+
 	private final Console console = System.console();
 	private static final ReportView root = new ReportView() {
 		@Override
@@ -28,30 +42,116 @@ public ReportView newChild(String text) {
 		@Override
 		public void stateChanged(boolean error, boolean working, boolean future, boolean modified, boolean done) {
 			if (done) {
-				System.out.println("========================================");
-				if (error) {
-					System.err.println("Errored. See the log for details.");
-				} else {
-					System.out.println("Done.");
-				}
-				if (modified) {
-					System.out.println("Changes have been made. See the log for details.");
-				} else {
-					System.out.println("No changes have been made.");
+				synchronized (writeLock) {
+					closed = true;
+					drain();
+					clearStatus();
+					System.out.println("========================================");
+					if (error) {
+						System.err.println("Errored. See the log for details.");
+					} else {
+						System.out.println("Done.");
+					}
+					if (modified) {
+						System.out.println("Changes have been made. See the log for details.");
+					} else {
+						System.out.println("No changes have been made.");
+					}
 				}
 			}
 		}
 	};
 
+	ConsoleUI() {
+		Thread writer = new Thread(ConsoleUI::write, "GitUpdate console");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private static void write() {
+		while (true) {
+			synchronized (writeLock) {
+				if (closed) {
+					return;
+				}
+				drain();
+				int running = Progress.getRunning();
+				int finished = Progress.getFinished();
+				if (STATUS_LINE && running + finished > 0) {
+					drawStatus(running + " running, " + finished + " done, " + Progress.getFailed() + " failed");
+				}
+			}
+			try {
+				Thread.sleep(FLUSH_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	// Must be called with writeLock held.
+	private static void drain() {
+		StringBuilder text = new StringBuilder();
+		boolean error = false;
+		Line line;
+		while ((line = lines.poll()) != null) {
+			clearStatus();
+			if (line.error != error && text.length() > 0) {
+				print(text, error);
+				text.setLength(0);
+			}
+			error = line.error;
+			text.append(line.text).append(System.lineSeparator());
+		}
+		if (text.length() > 0) {
+			print(text, error);
+		}
+	}
+
+	private static void print(CharSequence text, boolean error) {
+		PrintStream stream = error ? System.err : System.out;
+		stream.print(text);
+		stream.flush();
+	}
+
+	private static void drawStatus(String text) {
+		if (!text.equals(status)) {
+			clearStatus();
+			System.out.print(text);
+			System.out.flush();
+			status = text;
+		}
+	}
+
+	private static void clearStatus() {
+		if (!status.isEmpty()) {
+			StringBuilder blank = new StringBuilder("\r");
+			for (int i = 0; i < status.length(); i++) {
+				blank.append(' ');
+			}
+			System.out.print(blank.append('\r'));
+			System.out.flush();
+			status = "";
+		}
+	}
+
 	@Override
 	public UsernamePasswordPair promptLogin(String prompt) {
-		System.out.println(prompt);
-		return new UsernamePasswordPair(console.readLine("Username: "), promptPassword("Password: "));
+		synchronized (writeLock) {
+			drain();
+			clearStatus();
+			System.out.println(prompt);
+			return new UsernamePasswordPair(console.readLine("Username: "), promptPassword("Password: "));
+		}
 	}
 
 	@Override
 	public char[] promptPassword(String prompt) {
-		return console.readPassword("%s", prompt);
+		synchronized (writeLock) {
+			drain();
+			clearStatus();
+			return console.readPassword("%s", prompt);
+		}
 	}
 
 	@Override
@@ -59,12 +159,27 @@ public ReportView getRoot() {
 		return root;
 	}
 
+	private static final class Line {
+		private final String text;
+		private final boolean error;
+
+		private Line(String text, boolean error) {
+			this.text = text;
+			this.error = error;
+		}
+	}
+
 	private static final class ConsoleNodeView implements ReportView {
+		private final ConsoleNodeView top;
 		private final int indent;
 		private final String line;
 		private boolean printed;
+		// Top-level views only: the lines of their subtree while they run.
+		private List<Line> held;
+		private boolean released;
 
 		private ConsoleNodeView(ConsoleNodeView parent, String text) {
+			this.top = parent == null ? this : parent.top;
 			this.indent = parent == null ? 0 : parent.indent + 1;
 			StringBuilder line = new StringBuilder();
 			for (int i = 0; i < indent; i++) {
@@ -80,14 +195,22 @@ public ReportView newChild(String text) {
 
 		@Override
 		public void stateChanged(boolean error, boolean working, boolean future, boolean modified, boolean done) {
-			if (future || printed) {
-				return;
+			if (this == top && working && !done && held == null && !released) {
+				held = new ArrayList<>();
+			}
+			if (!future && !printed) {
+				printed = true;
+				Line line = new Line(this.line, error);
+				if (top.held != null) {
+					top.held.add(line);
+				} else {
+					lines.add(line);
+				}
 			}
-			printed = true;
-			if (error) {
-				System.err.println(line);
-			} else {
-				System.out.println(line);
+			if (this == top && done && held != null) {
+				lines.addAll(held);
+				held = null;
+				released = true;
 			}
 		}
 	}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.ui;
+
+import java.util.concurrent.atomic.*;
+
+// The number of repositories running, done and failed. Reports count
+// themselves as they start and finish, whether or not they are shown.
+public final class Progress {
+	private static final AtomicInteger running = new AtomicInteger();
+	private static final AtomicInteger finished = new AtomicInteger();
+	private static final AtomicInteger failed = new AtomicInteger();
+
+	private Progress() {
+	}
+
+	public static void started() {
+		running.incrementAndGet();
+	}
+
+	public static void finished(boolean error) {
+		running.decrementAndGet();
+		finished.incrementAndGet();
+		if (error) {
+			failed.incrementAndGet();
+		}
+	}
+
+	static int getRunning() {
+		return running.get();
+	}
+
+	static int getFinished() {
+		return finished.get();
+	}
+
+	static int getFailed() {
+		return failed.get();
+	}
+}
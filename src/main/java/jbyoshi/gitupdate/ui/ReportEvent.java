@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.ui;
+
+public final class ReportEvent {
+	public enum Type {
+		CREATED, STARTED, FINISHED, MODIFIED, ERRORED
+	}
+
+	// The parent of top-level nodes.
+	public static final int ROOT = -1;
+
+	public final Type type;
+	public final int node;
+	public final int parent;
+	public final String text;
+	public final boolean task;
+	public final long time = System.currentTimeMillis();
+
+	private ReportEvent(Type type, int node, int parent, String text, boolean task) {
+		this.type = type;
+		this.node = node;
+		this.parent = parent;
+		this.text = text;
+		this.task = task;
+	}
+
+	public static ReportEvent created(int node, int parent, String text, boolean task) {
+		return new ReportEvent(Type.CREATED, node, parent, text, task);
+	}
+
+	public static ReportEvent of(Type type, int node) {
+		return new ReportEvent(type, node, ROOT, null, false);
+	}
+}
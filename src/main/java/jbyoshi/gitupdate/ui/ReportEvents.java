@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.ui;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+// Delivers report events to any number of subscribers, each on its own thread
+// and in batches. Publishers claim a sequence number and fill its slot in a
+// ring without locking; subscribers poll for filled slots. Publishing only
+// waits if the slowest subscriber is a full ring behind.
+public final class ReportEvents {
+	public static final ReportEvents INSTANCE = new ReportEvents(1 << 16);
+
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final AtomicReferenceArray<ReportEvent> ring;
+	// The sequence number each slot was last filled for.
+	private final AtomicLongArray filled;
+	private final AtomicLong claimed = new AtomicLong();
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+	private volatile boolean closed;
+
+	private ReportEvents(int size) {
+		ring = new AtomicReferenceArray<>(size);
+		filled = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			filled.set(i, -1);
+		}
+	}
+
+	// Only events published after this call are delivered.
+	public synchronized void subscribe(String name, Consumer<List<ReportEvent>> consumer) {
+		Subscriber subscriber = new Subscriber(consumer, claimed.get());
+		subscribers.add(subscriber);
+		subscriber.thread = new Thread(subscriber, "GitUpdate events: " + name);
+		subscriber.thread.setDaemon(true);
+		subscriber.thread.start();
+	}
+
+	public void publish(ReportEvent event) {
+		long sequence = claimed.getAndIncrement();
+		while (sequence - getSlowestCursor() >= ring.length()) {
+			LockSupport.parkNanos(IDLE_NANOS);
+		}
+		int slot = (int) (sequence % ring.length());
+		ring.set(slot, event);
+		filled.set(slot, sequence);
+	}
+
+	private long getSlowestCursor() {
+		long slowest = Long.MAX_VALUE;
+		for (Subscriber subscriber : subscribers) {
+			slowest = Math.min(slowest, subscriber.cursor);
+		}
+		return slowest;
+	}
+
+	// Waits until every subscriber has handled every event, then stops them.
+	public void close() throws InterruptedException {
+		closed = true;
+		for (Subscriber subscriber : subscribers) {
+			subscriber.thread.join();
+		}
+	}
+
+	private final class Subscriber implements Runnable {
+		private final Consumer<List<ReportEvent>> consumer;
+		// The next sequence number to read; slots before it may be reused.
+		private volatile long cursor;
+		private Thread thread;
+
+		private Subscriber(Consumer<List<ReportEvent>> consumer, long cursor) {
+			this.consumer = consumer;
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				List<ReportEvent> batch = new ArrayList<>();
+				long next = cursor;
+				while (filled.get((int) (next % ring.length())) == next) {
+					batch.add(ring.get((int) (next % ring.length())));
+					next++;
+				}
+				if (batch.isEmpty()) {
+					if (closed && next == claimed.get()) {
+						return;
+					}
+					LockSupport.parkNanos(IDLE_NANOS);
+					continue;
+				}
+				cursor = next;
+				try {
+					consumer.accept(batch);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
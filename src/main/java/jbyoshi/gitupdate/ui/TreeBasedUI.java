@@ -17,16 +17,26 @@
 
 import java.awt.*;
 import java.awt.event.*;
+import java.util.*;
+import java.util.List;
 
 import javax.swing.*;
+import javax.swing.Timer;
 import javax.swing.tree.*;
 
 @SuppressWarnings("serial")
 final class TreeBasedUI implements UI {
+	private static final int FRAME_RATE = 30;
+
 	private final JFrame frame;
 	private final JTree tree;
 	private final DefaultTreeModel model;
 	private final GUINodeView root;
+	// Changes made by worker threads are queued here and applied together on
+	// the event dispatch thread, at most FRAME_RATE times a second.
+	private final Object pendingLock = new Object();
+	private List<GUINodeView> pendingInserts = new ArrayList<>();
+	private boolean pendingChanges;
 
 	private static final Icon ICON_PLAIN = getIcon("plain");
 	private static final Icon ICON_FUTURE = getIcon("future");
@@ -41,7 +51,7 @@ final class TreeBasedUI implements UI {
 
 	TreeBasedUI() {
 		frame = new JFrame("GitUpdate - Loading");
-		root = new GUINodeView("Updates") {
+		root = new GUINodeView(null, "Updates") {
 			@Override
 			public void stateChanged(boolean error, boolean working, boolean future, boolean modified, boolean done) {
 				super.stateChanged(error, working, future, modified, done);
@@ -76,6 +86,34 @@ public Component getTreeCellRendererComponent(JTree tree, Object value, boolean
 		frame.pack();
 		frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
 		frame.setVisible(true);
+		new Timer(1000 / FRAME_RATE, e -> flush()).start();
+	}
+
+	private void flush() {
+		List<GUINodeView> inserts;
+		synchronized (pendingLock) {
+			if (pendingInserts.isEmpty() && !pendingChanges) {
+				return;
+			}
+			inserts = pendingInserts;
+			pendingInserts = new ArrayList<>();
+			pendingChanges = false;
+		}
+		Map<GUINodeView, List<Integer>> inserted = new LinkedHashMap<>();
+		for (GUINodeView child : inserts) {
+			child.parentView.add(child);
+			inserted.computeIfAbsent(child.parentView, parent -> new ArrayList<>())
+					.add(child.parentView.getChildCount() - 1);
+		}
+		for (Map.Entry<GUINodeView, List<Integer>> entry : inserted.entrySet()) {
+			model.nodesWereInserted(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+		}
+		if (!inserted.isEmpty()) {
+			tree.expandPath(new TreePath(root.getPath()));
+		}
+		// Only icons change after a node is created, so nothing needs to be
+		// measured again; one repaint picks up every new icon.
+		tree.repaint();
 	}
 
 	@Override
@@ -133,20 +171,20 @@ public ReportView getRoot() {
 	}
 
 	private class GUINodeView extends DefaultMutableTreeNode implements ReportView {
-		private Icon icon = ICON_PLAIN;
+		private final GUINodeView parentView;
+		private volatile Icon icon = ICON_PLAIN;
 
-		private GUINodeView(String text) {
+		private GUINodeView(GUINodeView parentView, String text) {
 			super(text);
+			this.parentView = parentView;
 		}
 
 		@Override
 		public ReportView newChild(String text) {
-			GUINodeView child = new GUINodeView(text);
-			EventQueue.invokeLater(() -> {
-				model.insertNodeInto(child, this, getChildCount());
-				model.nodeChanged(this);
-				tree.expandPath(new TreePath(root.getPath()));
-			});
+			GUINodeView child = new GUINodeView(this, text);
+			synchronized (pendingLock) {
+				pendingInserts.add(child);
+			}
 			return child;
 		}
 
@@ -179,7 +217,9 @@ public void stateChanged(boolean error, boolean working, boolean future, boolean
 			} else {
 				icon = ICON_PLAIN;
 			}
-			EventQueue.invokeLater(() -> model.nodeChanged(this));
+			synchronized (pendingLock) {
+				pendingChanges = true;
+			}
 		}
 	}
 
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015 JBYoshi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jbyoshi.gitupdate.ui;
+
+import java.util.*;
+import java.util.function.*;
+
+// Applies report events to a UI's views. A node that is modified or errored
+// marks its ancestors too, stopping at the first one that already was.
+public final class ViewUpdater implements Consumer<List<ReportEvent>> {
+	private final UI ui;
+	private final Map<Integer, Node> nodes = new HashMap<>();
+
+	public ViewUpdater(UI ui) {
+		this.ui = ui;
+	}
+
+	@Override
+	public void accept(List<ReportEvent> events) {
+		for (ReportEvent event : events) {
+			if (event.type == ReportEvent.Type.CREATED) {
+				Node node;
+				if (event.parent == ReportEvent.ROOT) {
+					node = new Node(null, ui.getRoot());
+				} else {
+					Node parent = nodes.get(event.parent);
+					if (parent == null) {
+						throw new IllegalStateException("Node " + event.node + " created before its parent "
+								+ event.parent);
+					}
+					node = new Node(parent, parent.view.newChild(event.text));
+				}
+				nodes.put(event.node, node);
+				if (event.task) {
+					node.future = true;
+					node.stateChanged();
+				}
+				continue;
+			}
+			Node node = nodes.get(event.node);
+			if (node == null) {
+				continue;
+			}
+			switch (event.type) {
+			case STARTED:
+				node.future = false;
+				node.working = true;
+				node.stateChanged();
+				break;
+			case FINISHED:
+				node.working = false;
+				node.done = true;
+				node.stateChanged();
+				break;
+			case MODIFIED:
+				Deque<Node> unmodified = new ArrayDeque<>();
+				for (Node n = node; n != null && !n.modified; n = n.parent) {
+					unmodified.push(n);
+				}
+				for (Node n : unmodified) {
+					n.modified = true;
+					n.stateChanged();
+				}
+				break;
+			case ERRORED:
+				Deque<Node> unerrored = new ArrayDeque<>();
+				for (Node n = node; n != null && !n.error; n = n.parent) {
+					unerrored.push(n);
+				}
+				for (Node n : unerrored) {
+					n.error = true;
+					n.stateChanged();
+				}
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private static final class Node {
+		private final Node parent;
+		private final ReportView view;
+		private boolean error, modified, future, working, done;
+
+		private Node(Node parent, ReportView view) {
+			this.parent = parent;
+			this.view = view;
+		}
+
+		private void stateChanged() {
+			view.stateChanged(error, working, future, modified, done);
+		}
+	}
+}